@@ -0,0 +1,63 @@
+package cluster;
+
+import markers.EarthquakeMarker;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A group of quakes linked by their space-time windows: the largest is the mainshock and the
+ * others its foreshocks and aftershocks.
+ *
+ * @author abrar hayat
+ */
+
+public class QuakeSequence {
+
+    private final List<EarthquakeMarker> quakes;
+    private final EarthquakeMarker mainshock;
+    private final long start;
+    private final long end;
+
+    QuakeSequence(List<EarthquakeMarker> quakes) {
+        this.quakes = Collections.unmodifiableList(quakes);
+        EarthquakeMarker largest = quakes.get(0);
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (EarthquakeMarker quake : quakes) {
+            if (quake.getMagnitude() > largest.getMagnitude()) {
+                largest = quake;
+            }
+            first = Math.min(first, quake.getTime());
+            last = Math.max(last, quake.getTime());
+        }
+        this.mainshock = largest;
+        this.start = first;
+        this.end = last;
+    }
+
+    public EarthquakeMarker getMainshock() {
+        return mainshock;
+    }
+
+    public List<EarthquakeMarker> getQuakes() {
+        return quakes;
+    }
+
+    public int size() {
+        return quakes.size();
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public String describe() {
+        return String.format("%s, %d related quakes over %.1f hours", mainshock.getTitle(), size() - 1,
+                (end - start) / 3600000.0);
+    }
+}
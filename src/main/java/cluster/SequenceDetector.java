@@ -0,0 +1,383 @@
+package cluster;
+
+import de.fhpotsdam.unfolding.geo.Location;
+import de.fhpotsdam.unfolding.utils.GeoUtils;
+import markers.EarthquakeMarker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups quakes into mainshock/aftershock sequences with magnitude scaled Gardner-Knopoff windows.
+ * Two quakes are linked when the smaller one lies within the distance and time window of the
+ * larger, and a sequence is a connected group of linked quakes, kept in a union-find structure.
+ *
+ * Quakes are added one at a time, as they arrive from the feed. Each one is linked against the
+ * quakes found through a grid over latitude, longitude and time, so the cost of an addition depends
+ * on the activity nearby rather than on the size of the catalog. Removing quakes links again only
+ * the rest of the sequences they belonged to.
+ *
+ * @author abrar hayat
+ */
+
+public class SequenceDetector {
+
+    private static final double DAY_MILLIS = 24 * 60 * 60 * 1000.0;
+    private static final double KM_PER_DEGREE = GeoUtils.EARTH_RADIUS_KM * Math.PI / 180;
+    private static final double CELL_DEGREES = 1;
+    private static final int LAT_CELLS = (int) (180 / CELL_DEGREES);
+    private static final int LON_CELLS = (int) (360 / CELL_DEGREES);
+    private static final long TIME_CELL_MILLIS = 30 * 24 * 60 * 60 * 1000L;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Map<Long, int[]> grid = new HashMap<Long, int[]>();
+    private final Map<EarthquakeMarker, Integer> indices = new HashMap<EarthquakeMarker, Integer>();
+    private EarthquakeMarker[] quakes = new EarthquakeMarker[INITIAL_CAPACITY];
+    private int[] parent = new int[INITIAL_CAPACITY];
+    private int[] sizes = new int[INITIAL_CAPACITY];
+    // the members of each sequence form a circular list through next, so that they can be listed
+    private int[] next = new int[INITIAL_CAPACITY];
+    // indices up to count are in use, dead of them by removed quakes, until the arrays are compacted
+    private int count;
+    private int dead;
+    private float largestMagnitude;
+    private long firstTimeCell = Long.MAX_VALUE;
+    private long lastTimeCell = Long.MIN_VALUE;
+
+    /**
+     * Adds a quake and links it to the sequences whose windows it falls into, merging them if it
+     * links several.
+     */
+    public void add(EarthquakeMarker quake) {
+        if (indices.containsKey(quake)) {
+            return;
+        }
+        int index = count++;
+        ensureCapacity(count);
+        quakes[index] = quake;
+        parent[index] = index;
+        sizes[index] = 1;
+        next[index] = index;
+        indices.put(quake, index);
+        largestMagnitude = Math.max(largestMagnitude, quake.getMagnitude());
+
+        // a linked quake is within the window of the larger of the two, which is at most this large
+        float magnitude = Math.max(quake.getMagnitude(), largestMagnitude);
+        linkNearby(quake, distanceWindowKm(magnitude), timeWindowMillis(magnitude), index);
+        addToGrid(quake, index);
+    }
+
+    /**
+     * Removes quakes. A union-find structure cannot split a sequence, and the remaining quakes of a
+     * sequence may have been linked only through a removed one, so the remaining quakes of the
+     * sequences that lost one are linked again. The other sequences are left as they are. Removed
+     * quakes leave their index unused until more than half of the indices are unused.
+     */
+    public void removeAll(Collection<EarthquakeMarker> removed) {
+        List<Integer> roots = new ArrayList<Integer>();
+        for (EarthquakeMarker quake : removed) {
+            Integer index = indices.remove(quake);
+            if (index == null) {
+                continue;
+            }
+            int root = find(index);
+            if (sizes[root] > 0) {
+                roots.add(root);
+                sizes[root] = 0;  // marks the sequence as listed
+            }
+            removeFromGrid(quake, index);
+            quakes[index] = null;
+            dead++;
+        }
+        if (roots.isEmpty()) {
+            return;
+        }
+        // take the sequences apart before linking again, a remaining quake may link into any of them
+        List<Integer> remaining = new ArrayList<Integer>();
+        for (int root : roots) {
+            int member = root;
+            do {
+                int following = next[member];
+                if (quakes[member] != null) {
+                    remaining.add(member);
+                }
+                parent[member] = member;
+                sizes[member] = quakes[member] == null ? 0 : 1;
+                next[member] = member;
+                member = following;
+            } while (member != root);
+        }
+        for (int index : remaining) {
+            float magnitude = Math.max(quakes[index].getMagnitude(), largestMagnitude);
+            linkNearby(quakes[index], distanceWindowKm(magnitude), timeWindowMillis(magnitude), index);
+        }
+        if (dead > count - dead) {
+            compact();
+        }
+    }
+
+    public int size() {
+        return count - dead;
+    }
+
+    /**
+     * @return the sequence containing the quake, or null if it has not been added
+     */
+    public QuakeSequence getSequence(EarthquakeMarker quake) {
+        Integer index = indices.get(quake);
+        if (index == null) {
+            return null;
+        }
+        int root = find(index);
+        int[] memberIndices = new int[sizes[root]];
+        int member = root;
+        for (int i = 0; i < memberIndices.length; i++) {
+            memberIndices[i] = member;
+            member = next[member];
+        }
+        // in the order they were added, as getSequences lists them
+        Arrays.sort(memberIndices);
+        List<EarthquakeMarker> members = new ArrayList<EarthquakeMarker>(memberIndices.length);
+        for (int i : memberIndices) {
+            members.add(quakes[i]);
+        }
+        return new QuakeSequence(members);
+    }
+
+    /**
+     * @return the sequences with at least the given number of quakes, largest first
+     */
+    public List<QuakeSequence> getSequences(int minSize) {
+        Map<Integer, List<EarthquakeMarker>> byRoot = new HashMap<Integer, List<EarthquakeMarker>>();
+        for (int i = 0; i < count; i++) {
+            if (quakes[i] == null) {
+                continue;
+            }
+            int root = find(i);
+            if (sizes[root] < minSize) {
+                continue;
+            }
+            List<EarthquakeMarker> members = byRoot.get(root);
+            if (members == null) {
+                members = new ArrayList<EarthquakeMarker>(sizes[root]);
+                byRoot.put(root, members);
+            }
+            members.add(quakes[i]);
+        }
+        List<QuakeSequence> sequences = new ArrayList<QuakeSequence>();
+        for (List<EarthquakeMarker> members : byRoot.values()) {
+            sequences.add(new QuakeSequence(members));
+        }
+        Collections.sort(sequences, new Comparator<QuakeSequence>() {
+            @Override
+            public int compare(QuakeSequence a, QuakeSequence b) {
+                if (a.size() != b.size()) {
+                    return b.size() - a.size();
+                }
+                return Float.compare(b.getMainshock().getMagnitude(), a.getMainshock().getMagnitude());
+            }
+        });
+        return sequences;
+    }
+
+    /**
+     * Gardner and Knopoff (1974) distance window.
+     */
+    static double distanceWindowKm(float magnitude) {
+        return Math.pow(10, 0.1238 * magnitude + 0.983);
+    }
+
+    /**
+     * Gardner and Knopoff (1974) time window.
+     */
+    static long timeWindowMillis(float magnitude) {
+        double days = magnitude >= 6.5 ? Math.pow(10, 0.032 * magnitude + 2.7389)
+                : Math.pow(10, 0.5409 * magnitude - 0.547);
+        return (long) (days * DAY_MILLIS);
+    }
+
+    private void linkNearby(EarthquakeMarker quake, double radiusKm, long windowMillis, int index) {
+        Location location = quake.getLocation();
+        int latCell = latCell(location.getLat());
+        int lonCell = lonCell(location.getLon());
+        long timeCell = timeCell(quake.getTime());
+        int latSpan = (int) Math.ceil(radiusKm / (KM_PER_DEGREE * CELL_DEGREES));
+        // longitude cells shrink towards the poles, where every column is searched
+        double cosLat = Math.cos(Math.toRadians(Math.min(89, Math.abs(location.getLat()) + latSpan * CELL_DEGREES)));
+        int lonSpan = Math.min(LON_CELLS / 2, (int) Math.ceil(radiusKm / (KM_PER_DEGREE * CELL_DEGREES * cosLat)));
+        long timeSpan = (windowMillis + TIME_CELL_MILLIS - 1) / TIME_CELL_MILLIS;
+        // large windows span years, but only the cells the catalog covers can hold anything
+        long fromTime = Math.max(firstTimeCell, timeCell - timeSpan);
+        long toTime = Math.min(lastTimeCell, timeCell + timeSpan);
+        for (long time = fromTime; time <= toTime; time++) {
+            for (int lat = Math.max(0, latCell - latSpan); lat <= Math.min(LAT_CELLS - 1, latCell + latSpan); lat++) {
+                for (int lonOffset = -lonSpan; lonOffset <= lonSpan; lonOffset++) {
+                    if (lonSpan == LON_CELLS / 2 && lonOffset == lonSpan) {
+                        break;  // all columns were visited, don't visit the wrapped one twice
+                    }
+                    int lon = ((lonCell + lonOffset) % LON_CELLS + LON_CELLS) % LON_CELLS;
+                    int[] cell = grid.get(key(lat, lon, time));
+                    if (cell != null) {
+                        for (int i = 1; i <= cell[0]; i++) {
+                            if (isLinked(quake, quakes[cell[i]])) {
+                                union(index, cell[i]);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isLinked(EarthquakeMarker a, EarthquakeMarker b) {
+        float magnitude = Math.max(a.getMagnitude(), b.getMagnitude());
+        if (Math.abs(a.getTime() - b.getTime()) > timeWindowMillis(magnitude)) {
+            return false;
+        }
+        Location la = a.getLocation();
+        Location lb = b.getLocation();
+        return GeoUtils.getDistance(la.getLat(), la.getLon(), lb.getLat(), lb.getLon())
+                <= distanceWindowKm(magnitude);
+    }
+
+    private void addToGrid(EarthquakeMarker quake, int index) {
+        Location location = quake.getLocation();
+        long timeCell = timeCell(quake.getTime());
+        firstTimeCell = Math.min(firstTimeCell, timeCell);
+        lastTimeCell = Math.max(lastTimeCell, timeCell);
+        long key = key(latCell(location.getLat()), lonCell(location.getLon()), timeCell);
+        // each cell is a count followed by the indices in it
+        int[] cell = grid.get(key);
+        if (cell == null) {
+            cell = new int[4];
+        } else if (cell[0] + 1 == cell.length) {
+            cell = Arrays.copyOf(cell, cell.length * 2);
+        }
+        cell[++cell[0]] = index;
+        grid.put(key, cell);
+    }
+
+    private void removeFromGrid(EarthquakeMarker quake, int index) {
+        Location location = quake.getLocation();
+        long key = key(latCell(location.getLat()), lonCell(location.getLon()), timeCell(quake.getTime()));
+        int[] cell = grid.get(key);
+        for (int i = 1; i <= cell[0]; i++) {
+            if (cell[i] == index) {
+                cell[i] = cell[cell[0]--];
+                break;
+            }
+        }
+        if (cell[0] == 0) {
+            grid.remove(key);
+        }
+    }
+
+    /**
+     * Moves the quakes down over the unused indices. Sequences keep their links, so nothing is
+     * linked again.
+     */
+    private void compact() {
+        int[] moved = new int[count];
+        int kept = 0;
+        float largest = 0;
+        for (int i = 0; i < count; i++) {
+            if (quakes[i] != null) {
+                moved[i] = kept++;
+                largest = Math.max(largest, quakes[i].getMagnitude());
+            }
+        }
+        int capacity = Math.max(INITIAL_CAPACITY, kept);
+        EarthquakeMarker[] newQuakes = new EarthquakeMarker[capacity];
+        int[] newParent = new int[capacity];
+        int[] newSizes = new int[capacity];
+        int[] newNext = new int[capacity];
+        for (int i = 0; i < count; i++) {
+            if (quakes[i] != null) {
+                // the sequences of removed quakes were taken apart, so roots and members are all kept
+                int index = moved[i];
+                newQuakes[index] = quakes[i];
+                newParent[index] = moved[find(i)];
+                newSizes[index] = sizes[i];
+                newNext[index] = moved[next[i]];
+                indices.put(quakes[i], index);
+            }
+        }
+        firstTimeCell = Long.MAX_VALUE;
+        lastTimeCell = Long.MIN_VALUE;
+        for (Map.Entry<Long, int[]> entry : grid.entrySet()) {
+            int[] cell = entry.getValue();
+            for (int i = 1; i <= cell[0]; i++) {
+                cell[i] = moved[cell[i]];
+            }
+            long timeCell = Math.floorDiv(entry.getKey(), (long) LAT_CELLS * LON_CELLS);
+            firstTimeCell = Math.min(firstTimeCell, timeCell);
+            lastTimeCell = Math.max(lastTimeCell, timeCell);
+        }
+        quakes = newQuakes;
+        parent = newParent;
+        sizes = newSizes;
+        next = newNext;
+        count = kept;
+        dead = 0;
+        largestMagnitude = largest;
+    }
+
+    private int find(int index) {
+        while (parent[index] != index) {
+            parent[index] = parent[parent[index]];
+            index = parent[index];
+        }
+        return index;
+    }
+
+    private void union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA == rootB) {
+            return;
+        }
+        if (sizes[rootA] < sizes[rootB]) {
+            int swap = rootA;
+            rootA = rootB;
+            rootB = swap;
+        }
+        parent[rootB] = rootA;
+        sizes[rootA] += sizes[rootB];
+        // splicing two circular lists joins them
+        int swap = next[rootA];
+        next[rootA] = next[rootB];
+        next[rootB] = swap;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > quakes.length) {
+            int newCapacity = Math.max(capacity, quakes.length * 2);
+            quakes = Arrays.copyOf(quakes, newCapacity);
+            parent = Arrays.copyOf(parent, newCapacity);
+            sizes = Arrays.copyOf(sizes, newCapacity);
+            next = Arrays.copyOf(next, newCapacity);
+        }
+    }
+
+    private static int latCell(float lat) {
+        return Math.max(0, Math.min(LAT_CELLS - 1, (int) Math.floor((lat + 90) / CELL_DEGREES)));
+    }
+
+    private static int lonCell(float lon) {
+        return ((int) Math.floor((lon + 180) / CELL_DEGREES) % LON_CELLS + LON_CELLS) % LON_CELLS;
+    }
+
+    private static long timeCell(long time) {
+        return Math.floorDiv(time, TIME_CELL_MILLIS);
+    }
+
+    private static long key(int latCell, int lonCell, long timeCell) {
+        return timeCell * LAT_CELLS * LON_CELLS + latCell * LON_CELLS + lonCell;
+    }
+}
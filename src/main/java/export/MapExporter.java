@@ -0,0 +1,234 @@
+package export;
+
+import de.fhpotsdam.unfolding.core.Coordinate;
+import de.fhpotsdam.unfolding.providers.AbstractMapProvider;
+import markers.CommonMarker;
+import processing.core.PApplet;
+import processing.core.PGraphics;
+import processing.core.PGraphicsJava2D;
+import processing.core.PImage;
+
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Renders the map, markers and legend offscreen at any resolution and streams the result into a
+ * PNG. The output is cut into tiles that render in parallel into their own PGraphics, a row of
+ * tiles (a strip) at a time; while one strip is encoded the next is already rendering. Peak memory
+ * is two strips, which depends on the output width and tile size but not on the output height.
+ *
+ * @author abrar hayat
+ */
+
+public class MapExporter {
+
+    /**
+     * Draws something in the export's detail coordinates, with the origin at its top left corner.
+     */
+    public interface Painter {
+        void paint(PGraphics pg);
+    }
+
+    private static final int OUTPUT_TILE_SIZE = 512;
+    // markers are drawn by every tile within this distance, so ones on a tile edge are not cut off
+    private static final float MARKER_MARGIN = 40;
+    private static final float LEGEND_MARGIN = 25;
+
+    private final PApplet parent;
+    private final AbstractMapProvider provider;
+    private final int maxTileZoom;
+    private final List<CommonMarker> markers = new ArrayList<CommonMarker>();
+    private Painter legend;
+    private float legendWidth;
+    private float legendHeight;
+
+    /**
+     * @param parent      the sketch, which Java2D needs for font metrics
+     * @param provider    where base map tiles are loaded from; its getTile must return images, as
+     *                    {@link tiles.CachingMapProvider} does
+     * @param maxTileZoom the deepest zoom level the provider has tiles for
+     */
+    public MapExporter(PApplet parent, AbstractMapProvider provider, int maxTileZoom) {
+        this.parent = parent;
+        this.provider = provider;
+        this.maxTileZoom = maxTileZoom;
+    }
+
+    /**
+     * Sets the markers to draw, in drawing order. Each marker is copied as it looks now, on the
+     * thread that changes the markers, and the render threads draw and place only the copies, so
+     * the map may go on changing its markers while exporting.
+     */
+    public void setMarkers(List<? extends CommonMarker> markers) {
+        this.markers.clear();
+        for (CommonMarker marker : markers) {
+            this.markers.add(marker.copy());
+        }
+    }
+
+    /**
+     * Sets the legend drawn in the top left corner, and its size before scaling.
+     */
+    public void setLegend(Painter legend, float width, float height) {
+        this.legend = legend;
+        this.legendWidth = width;
+        this.legendHeight = height;
+    }
+
+    public void export(MercatorView view, OutputStream out) throws IOException {
+        float[] xs = new float[markers.size()];
+        float[] ys = new float[markers.size()];
+        for (int i = 0; i < markers.size(); i++) {
+            xs[i] = view.screenX(markers.get(i).getLocation());
+            ys[i] = view.screenY(markers.get(i).getLocation());
+        }
+        int columns = (view.getWidth() + OUTPUT_TILE_SIZE - 1) / OUTPUT_TILE_SIZE;
+        int strips = (view.getHeight() + OUTPUT_TILE_SIZE - 1) / OUTPUT_TILE_SIZE;
+        ExecutorService renderers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "map-export");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        try {
+            PngWriter png = new PngWriter(out, view.getWidth(), view.getHeight());
+            int[] row = new int[view.getWidth()];
+            List<Future<PGraphics>> strip = renderStrip(renderers, view, 0, columns, xs, ys);
+            for (int s = 0; s < strips; s++) {
+                List<Future<PGraphics>> next = s + 1 < strips
+                        ? renderStrip(renderers, view, s + 1, columns, xs, ys) : null;
+                writeStrip(png, strip, row);
+                strip = next;
+            }
+            png.finish();
+        } finally {
+            renderers.shutdownNow();
+        }
+    }
+
+    private List<Future<PGraphics>> renderStrip(ExecutorService renderers, final MercatorView view, int strip,
+                                                int columns, final float[] xs, final float[] ys) {
+        List<Future<PGraphics>> tiles = new ArrayList<Future<PGraphics>>(columns);
+        final int y = strip * OUTPUT_TILE_SIZE;
+        final int height = Math.min(OUTPUT_TILE_SIZE, view.getHeight() - y);
+        for (int column = 0; column < columns; column++) {
+            final int x = column * OUTPUT_TILE_SIZE;
+            final int width = Math.min(OUTPUT_TILE_SIZE, view.getWidth() - x);
+            tiles.add(renderers.submit(new Callable<PGraphics>() {
+                @Override
+                public PGraphics call() {
+                    return renderTile(view, x, y, width, height, xs, ys);
+                }
+            }));
+        }
+        return tiles;
+    }
+
+    private void writeStrip(PngWriter png, List<Future<PGraphics>> strip, int[] row) throws IOException {
+        List<PGraphics> tiles = new ArrayList<PGraphics>(strip.size());
+        try {
+            for (Future<PGraphics> tile : strip) {
+                tiles.add(tile.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Export interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not render export tile", e.getCause());
+        }
+        int height = tiles.get(0).height;
+        for (int y = 0; y < height; y++) {
+            int x = 0;
+            for (PGraphics tile : tiles) {
+                System.arraycopy(tile.pixels, y * tile.width, row, x, tile.width);
+                x += tile.width;
+            }
+            png.writeRow(row, 0);
+        }
+    }
+
+    private PGraphics renderTile(MercatorView view, int x, int y, int width, int height, float[] xs, float[] ys) {
+        PGraphicsJava2D pg = new PGraphicsJava2D();
+        pg.setParent(parent);
+        pg.setPrimary(false);
+        pg.setSize(width, height);
+        pg.beginDraw();
+        pg.background(255);
+        drawBaseTiles(pg, view, x, y);
+        float scale = view.getScale();
+        float margin = MARKER_MARGIN * scale;
+        for (int i = 0; i < xs.length; i++) {
+            if (xs[i] >= x - margin && xs[i] < x + width + margin && ys[i] >= y - margin
+                    && ys[i] < y + height + margin) {
+                pg.pushMatrix();
+                pg.translate(xs[i] - x, ys[i] - y);
+                pg.scale(scale);
+                markers.get(i).drawMarker(pg, 0, 0);
+                pg.popMatrix();
+            }
+        }
+        float legendOffset = LEGEND_MARGIN * scale;
+        if (legend != null && x < legendOffset + legendWidth * scale && y < legendOffset + legendHeight * scale) {
+            pg.pushMatrix();
+            pg.translate(legendOffset - x, legendOffset - y);
+            pg.scale(scale);
+            legend.paint(pg);
+            pg.popMatrix();
+        }
+        pg.endDraw();
+        pg.loadPixels();
+        return pg;
+    }
+
+    // draws the provider's tiles under the output tile at (x, y), scaled to the view's zoom
+    private void drawBaseTiles(PGraphicsJava2D pg, MercatorView view, int x, int y) {
+        int tileZoom = Math.max(0, Math.min(maxTileZoom, (int) Math.round(view.getZoom())));
+        int tilesPerSide = 1 << tileZoom;
+        double tileSize = view.getWorldSize() / tilesPerSide;
+        double left = view.getLeft() + x;
+        double top = view.getTop() + y;
+        int firstColumn = (int) Math.floor(left / tileSize);
+        int lastColumn = (int) Math.floor((left + pg.width - 1) / tileSize);
+        int firstRow = Math.max(0, (int) Math.floor(top / tileSize));
+        int lastRow = Math.min(tilesPerSide - 1, (int) Math.floor((top + pg.height - 1) / tileSize));
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                // wrap around the date line
+                int wrapped = ((column % tilesPerSide) + tilesPerSide) % tilesPerSide;
+                PImage image = provider.getTile(new Coordinate(row, wrapped, tileZoom));
+                if (image == null) {
+                    continue;
+                }
+                // whole pixel edges, so neighbouring tiles meet without seams
+                int tileX = (int) Math.floor(column * tileSize - left);
+                int tileY = (int) Math.floor(row * tileSize - top);
+                int size = (int) Math.ceil(tileSize) + 1;
+                pg.g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                pg.g2.drawImage(toBufferedImage(image), tileX, tileY, size, size, null);
+            }
+        }
+    }
+
+    /*
+     * Tiles are shared with the map and with other export threads. pg.image() would go through the
+     * tile's modified flag, which every renderer also resets, so each tile is drawn from a private copy.
+     */
+    private static BufferedImage toBufferedImage(PImage image) {
+        BufferedImage buffered = new BufferedImage(image.width, image.height, BufferedImage.TYPE_INT_ARGB);
+        buffered.setRGB(0, 0, image.width, image.height, image.pixels, 0, image.width);
+        return buffered;
+    }
+}
@@ -0,0 +1,88 @@
+package export;
+
+import de.fhpotsdam.unfolding.geo.Location;
+
+/**
+ * A Web Mercator view of the world for export: an output size in pixels, the location at its
+ * center and a fractional zoom level, where the whole world is 256 * 2^zoom pixels wide. Detail
+ * such as markers and the legend is drawn larger by the scale factor, so a poster export looks
+ * like an enlarged screenshot rather than a wider one.
+ *
+ * @author abrar hayat
+ */
+
+public class MercatorView {
+
+    public static final int TILE_SIZE = 256;
+    private static final double MAX_LATITUDE = 85.0511;
+
+    private final int width;
+    private final int height;
+    private final double zoom;
+    private final float scale;
+    private final double worldSize;
+    private final double left;
+    private final double top;
+
+    public MercatorView(int width, int height, Location center, double zoom, float scale) {
+        this.width = width;
+        this.height = height;
+        this.zoom = zoom;
+        this.scale = scale;
+        this.worldSize = TILE_SIZE * Math.pow(2, zoom);
+        this.left = worldX(center.getLon()) - width / 2.0;
+        this.top = worldY(center.getLat()) - height / 2.0;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public double getZoom() {
+        return zoom;
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    public double getWorldSize() {
+        return worldSize;
+    }
+
+    /**
+     * @return the world pixel at the left edge of the output
+     */
+    public double getLeft() {
+        return left;
+    }
+
+    /**
+     * @return the world pixel at the top edge of the output
+     */
+    public double getTop() {
+        return top;
+    }
+
+    public float screenX(Location location) {
+        return (float) (worldX(location.getLon()) - left);
+    }
+
+    public float screenY(Location location) {
+        return (float) (worldY(location.getLat()) - top);
+    }
+
+    private double worldX(double lon) {
+        return (lon + 180) / 360 * worldSize;
+    }
+
+    private double worldY(double lat) {
+        double radians = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat)));
+        double mercator = Math.log(Math.tan(radians) + 1 / Math.cos(radians));
+        return (1 - mercator / Math.PI) / 2 * worldSize;
+    }
+}
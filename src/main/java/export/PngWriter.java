@@ -0,0 +1,143 @@
+package export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an 8-bit RGB PNG one scanline at a time. The compressed data is flushed in fixed size IDAT
+ * chunks as it is produced, so an image of any height can be written while only one row is held.
+ *
+ * @author abrar hayat
+ */
+
+public class PngWriter {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+    private static final int IDAT_CHUNK_SIZE = 64 * 1024;
+    private static final int BYTES_PER_PIXEL = 3;
+    private static final int FILTER_SUB = 1;
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final DeflaterOutputStream compressed;
+    private final byte[] scanline;
+    private int rowsWritten;
+
+    public PngWriter(OutputStream out, int width, int height) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.scanline = new byte[1 + width * BYTES_PER_PIXEL];
+        this.compressed = new DeflaterOutputStream(new IdatOutputStream(), deflater, IDAT_CHUNK_SIZE);
+        this.out.write(SIGNATURE);
+        writeHeader();
+    }
+
+    /**
+     * Writes the next row from ARGB pixels; alpha is dropped.
+     *
+     * @param offset the index of the row's first pixel in the array
+     */
+    public void writeRow(int[] pixels, int offset) throws IOException {
+        if (rowsWritten == height) {
+            throw new IOException("All " + height + " rows have already been written");
+        }
+        // the Sub filter stores each byte as the difference to the pixel on its left
+        scanline[0] = FILTER_SUB;
+        int previous = 0;
+        for (int x = 0; x < width; x++) {
+            int pixel = pixels[offset + x];
+            int index = 1 + x * BYTES_PER_PIXEL;
+            scanline[index] = (byte) ((pixel >> 16) - (previous >> 16));
+            scanline[index + 1] = (byte) ((pixel >> 8) - (previous >> 8));
+            scanline[index + 2] = (byte) (pixel - previous);
+            previous = pixel;
+        }
+        compressed.write(scanline);
+        rowsWritten++;
+    }
+
+    /**
+     * Finishes the image data and writes the end chunk. Does not close the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (rowsWritten != height) {
+            throw new IOException("Only " + rowsWritten + " of " + height + " rows were written");
+        }
+        compressed.finish();
+        compressed.flush();
+        deflater.end();
+        writeChunk("IEND", new byte[0], 0);
+        out.flush();
+    }
+
+    private void writeHeader() throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(header);
+        data.writeInt(width);
+        data.writeInt(height);
+        data.writeByte(8);  // bit depth
+        data.writeByte(2);  // color type RGB
+        data.writeByte(0);  // deflate compression
+        data.writeByte(0);  // adaptive filtering
+        data.writeByte(0);  // no interlace
+        writeChunk("IHDR", header.toByteArray(), header.size());
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Buffers compressed bytes and writes them out as IDAT chunks.
+     */
+    private class IdatOutputStream extends OutputStream {
+
+        private final byte[] buffer = new byte[IDAT_CHUNK_SIZE];
+        private int length;
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer[length++] = (byte) b;
+            if (length == buffer.length) {
+                flush();
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) throws IOException {
+            while (count > 0) {
+                int copied = Math.min(count, buffer.length - length);
+                System.arraycopy(bytes, offset, buffer, length, copied);
+                length += copied;
+                offset += copied;
+                count -= copied;
+                if (length == buffer.length) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (length > 0) {
+                writeChunk("IDAT", buffer, length);
+                length = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package filter;
+
+import de.fhpotsdam.unfolding.marker.Marker;
+import de.fhpotsdam.unfolding.marker.MarkerManager;
+
+import java.util.BitSet;
+
+/**
+ * A marker manager that draws only the markers visible in its {@link MarkerFilterEngine},
+ * walking the visible bitset directly instead of every marker.
+ *
+ * @author abrar hayat
+ */
+
+public class FilteredMarkerManager extends MarkerManager<Marker> {
+
+    private final MarkerFilterEngine engine;
+
+    public FilteredMarkerManager(MarkerFilterEngine engine) {
+        this.engine = engine;
+    }
+
+    @Override
+    public void draw() {
+        if (!bEnableDrawing) {
+            return;
+        }
+        BitSet visible = engine.getVisible();
+        for (int slot = visible.nextSetBit(0); slot >= 0; slot = visible.nextSetBit(slot + 1)) {
+            engine.getMarker(slot).draw(map);
+        }
+    }
+}
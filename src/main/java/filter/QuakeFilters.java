@@ -0,0 +1,308 @@
+package filter;
+
+import markers.EarthquakeMarker;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The quake filters of the map. Every quake is indexed once into per-bucket bitsets (magnitude
+ * step, depth band, age, land/ocean, country), and a filter is the union of its allowed buckets,
+ * handed to the {@link MarkerFilterEngine} as a predicate.
+ *
+ * @author abrar hayat
+ */
+
+public class QuakeFilters {
+
+    private static final float MAGNITUDE_STEP = 0.5f;
+    private static final int MAGNITUDE_BUCKETS = 20;
+    private static final String[] DEPTH_NAMES = {"Shallow", "Intermediate", "Deep"};
+    private static final String[] AGE_NAMES = {"Past Hour", "Past Day", "Past Week", "Past Month"};
+    private static final String[] LAND_OCEAN_NAMES = {"Land", "Ocean"};
+    private static final int LAND = 0;
+    private static final int OCEAN = 1;
+
+    private final MarkerFilterEngine engine;
+    private final BucketFilter magnitude = new BucketFilter(MarkerFilterEngine.Predicate.MAGNITUDE,
+            MAGNITUDE_BUCKETS);
+    private final BucketFilter depth = new BucketFilter(MarkerFilterEngine.Predicate.DEPTH,
+            DEPTH_NAMES.length);
+    private final BucketFilter age = new BucketFilter(MarkerFilterEngine.Predicate.AGE,
+            AGE_NAMES.length);
+    private final BucketFilter landOcean = new BucketFilter(MarkerFilterEngine.Predicate.LAND_OCEAN,
+            LAND_OCEAN_NAMES.length);
+    private final BucketFilter country = new BucketFilter(MarkerFilterEngine.Predicate.COUNTRY, 0);
+    private final Map<String, Integer> countryBuckets = new HashMap<String, Integer>();
+    private final BitSet timeWindow = new BitSet();
+
+    private float minMagnitude = 0;
+    private int maxAge = AGE_NAMES.length;
+    private int landOceanMode = -1;
+    private String selectedCountry;
+
+    public QuakeFilters(MarkerFilterEngine engine) {
+        this.engine = engine;
+        engine.setPredicate(MarkerFilterEngine.Predicate.TIME_WINDOW, timeWindow);
+    }
+
+    /**
+     * Adds a quake to the engine and to its buckets.
+     *
+     * @return the slot of the quake
+     */
+    public int add(EarthquakeMarker quake) {
+        int slot = engine.add(quake);
+        magnitude.add(slot, magnitudeBucket(quake.getMagnitude()));
+        depth.add(slot, depthBand(quake.getDepth()));
+        age.add(slot, quake.getAgeInt() - 1);
+        landOcean.add(slot, quake.isOnLand() ? LAND : OCEAN);
+        country.add(slot, countryBucket(quake.getStringProperty("country")));
+        return slot;
+    }
+
+    /**
+     * Removes a quake from the engine and from its buckets, freeing its slot.
+     */
+    public void remove(EarthquakeMarker quake) {
+        int slot = quake.getFilterSlot();
+        magnitude.remove(slot, magnitudeBucket(quake.getMagnitude()));
+        depth.remove(slot, depthBand(quake.getDepth()));
+        age.remove(slot, quake.getAgeInt() - 1);
+        landOcean.remove(slot, quake.isOnLand() ? LAND : OCEAN);
+        country.remove(slot, countryBucket(quake.getStringProperty("country")));
+        timeWindow.clear(slot);
+        engine.remove(quake);
+    }
+
+    /**
+     * Moves a quake whose age bucket changed from its previous bucket to its current one.
+     */
+    public void updateAge(EarthquakeMarker quake, int previousAgeInt) {
+        int slot = quake.getFilterSlot();
+        age.remove(slot, previousAgeInt - 1);
+        age.add(slot, quake.getAgeInt() - 1);
+        engine.invalidate();
+    }
+
+    public void setInTimeWindow(EarthquakeMarker quake, boolean inWindow) {
+        timeWindow.set(quake.getFilterSlot(), inWindow);
+        engine.invalidate();
+    }
+
+    public void raiseMinMagnitude() {
+        setMinMagnitude(Math.min(minMagnitude + MAGNITUDE_STEP, (MAGNITUDE_BUCKETS - 1) * MAGNITUDE_STEP));
+    }
+
+    public void lowerMinMagnitude() {
+        setMinMagnitude(Math.max(minMagnitude - MAGNITUDE_STEP, 0));
+    }
+
+    public void setMinMagnitude(float minMagnitude) {
+        this.minMagnitude = minMagnitude;
+        magnitude.allowFrom(magnitudeBucket(minMagnitude));
+        magnitude.apply(engine);
+    }
+
+    /**
+     * Toggles a depth band: 0 shallow, 1 intermediate, 2 deep.
+     */
+    public void toggleDepthBand(int band) {
+        depth.toggle(band);
+        depth.apply(engine);
+    }
+
+    /**
+     * Cycles the oldest age shown: all, past hour, past day, past week.
+     */
+    public void cycleMaxAge() {
+        maxAge = maxAge == AGE_NAMES.length ? 1 : maxAge + 1;
+        age.allowBelow(maxAge);
+        age.apply(engine);
+    }
+
+    /**
+     * Cycles between land and ocean quakes, only land quakes and only ocean quakes.
+     */
+    public void cycleLandOcean() {
+        landOceanMode = landOceanMode == OCEAN ? -1 : landOceanMode + 1;
+        if (landOceanMode < 0) {
+            landOcean.allowAll();
+        } else {
+            landOcean.allowOnly(landOceanMode);
+        }
+        landOcean.apply(engine);
+    }
+
+    /**
+     * Shows only the quakes in the given country, or all quakes when the country is null.
+     */
+    public void setCountry(String countryName) {
+        selectedCountry = countryName;
+        if (countryName == null) {
+            country.allowAll();
+        } else {
+            country.allowOnly(countryBucket(countryName));
+        }
+        country.apply(engine);
+    }
+
+    public String getCountry() {
+        return selectedCountry;
+    }
+
+    public void reset() {
+        setMinMagnitude(0);
+        depth.allowAll();
+        depth.apply(engine);
+        maxAge = AGE_NAMES.length;
+        age.allowAll();
+        age.apply(engine);
+        landOceanMode = -1;
+        landOcean.allowAll();
+        landOcean.apply(engine);
+        setCountry(null);
+    }
+
+    /**
+     * @return one line per active filter, for display in the filter panel
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<String>();
+        if (minMagnitude > 0) {
+            lines.add("Magnitude >= " + minMagnitude);
+        }
+        StringBuilder depths = new StringBuilder();
+        for (int band = 0; band < DEPTH_NAMES.length; band++) {
+            if (depth.isAllowed(band)) {
+                depths.append(depths.length() > 0 ? ", " : "").append(DEPTH_NAMES[band]);
+            }
+        }
+        if (!depth.isAllAllowed()) {
+            lines.add("Depth: " + (depths.length() > 0 ? depths : "none"));
+        }
+        if (maxAge < AGE_NAMES.length) {
+            lines.add("Age: " + AGE_NAMES[maxAge - 1] + " or newer");
+        }
+        if (landOceanMode >= 0) {
+            lines.add("Only " + LAND_OCEAN_NAMES[landOceanMode] + " quakes");
+        }
+        if (selectedCountry != null) {
+            lines.add("Country: " + selectedCountry);
+        }
+        return lines;
+    }
+
+    private static int magnitudeBucket(float magnitude) {
+        return Math.max(0, Math.min(MAGNITUDE_BUCKETS - 1, (int) (magnitude / MAGNITUDE_STEP)));
+    }
+
+    private static int depthBand(float depth) {
+        if (depth < EarthquakeMarker.THRESHOLD_INTERMEDIATE) {
+            return 0;
+        } else if (depth < EarthquakeMarker.THRESHOLD_DEEP) {
+            return 1;
+        }
+        return 2;
+    }
+
+    private int countryBucket(String countryName) {
+        String key = countryName == null ? "" : countryName;
+        Integer bucket = countryBuckets.get(key);
+        if (bucket == null) {
+            bucket = countryBuckets.size();
+            countryBuckets.put(key, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * A filter over one bucketed attribute: the slots in each bucket and which buckets are allowed.
+     */
+    private static class BucketFilter {
+
+        private final MarkerFilterEngine.Predicate predicate;
+        private final List<BitSet> buckets = new ArrayList<BitSet>();
+        private final BitSet allowed = new BitSet();
+        private final BitSet passing = new BitSet();
+        private boolean allAllowed = true;
+
+        BucketFilter(MarkerFilterEngine.Predicate predicate, int bucketCount) {
+            this.predicate = predicate;
+            ensureBucket(bucketCount - 1);
+        }
+
+        void add(int slot, int bucket) {
+            ensureBucket(bucket);
+            buckets.get(bucket).set(slot);
+            if (!allAllowed && allowed.get(bucket)) {
+                passing.set(slot);
+            }
+        }
+
+        void remove(int slot, int bucket) {
+            buckets.get(bucket).clear(slot);
+            passing.clear(slot);
+        }
+
+        boolean isAllowed(int bucket) {
+            return allAllowed || allowed.get(bucket);
+        }
+
+        boolean isAllAllowed() {
+            return allAllowed;
+        }
+
+        void allowAll() {
+            allAllowed = true;
+        }
+
+        void allowOnly(int bucket) {
+            allowed.clear();
+            allowed.set(bucket);
+            allAllowed = false;
+        }
+
+        void allowFrom(int bucket) {
+            allowed.clear();
+            allowed.set(bucket, buckets.size());
+            allAllowed = bucket == 0;
+        }
+
+        void allowBelow(int bucketCount) {
+            allowed.clear();
+            allowed.set(0, bucketCount);
+            allAllowed = bucketCount >= buckets.size();
+        }
+
+        void toggle(int bucket) {
+            if (allAllowed) {
+                allowed.set(0, buckets.size());
+            }
+            allowed.flip(bucket);
+            allAllowed = allowed.cardinality() == buckets.size();
+        }
+
+        void apply(MarkerFilterEngine engine) {
+            if (allAllowed) {
+                engine.clearPredicate(predicate);
+                return;
+            }
+            passing.clear();
+            for (int bucket = allowed.nextSetBit(0); bucket >= 0 && bucket < buckets.size();
+                 bucket = allowed.nextSetBit(bucket + 1)) {
+                passing.or(buckets.get(bucket));
+            }
+            engine.setPredicate(predicate, passing);
+        }
+
+        private void ensureBucket(int bucket) {
+            while (buckets.size() <= bucket) {
+                buckets.add(new BitSet());
+            }
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package layers;
+
+import de.fhpotsdam.unfolding.UnfoldingMap;
+import de.fhpotsdam.unfolding.geo.Location;
+import de.fhpotsdam.unfolding.marker.AbstractShapeMarker;
+import de.fhpotsdam.unfolding.marker.Marker;
+import de.fhpotsdam.unfolding.marker.MultiMarker;
+import filter.MarkerFilterEngine;
+import markers.EarthquakeMarker;
+import processing.core.PConstants;
+import processing.core.PGraphics;
+import processing.core.PShape;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shades countries by the quake count or the largest magnitude of the quakes the filters let
+ * through.
+ *
+ * The country outlines are simplified with Douglas-Peucker once for each of the first zoom levels,
+ * to the detail that is visible at that zoom, and the full outlines are used beyond them. Each
+ * polygon's fill is a retained PShape per level, created when first drawn. When the statistics
+ * change only the fill colours of the cached shapes are set; the geometry is never rebuilt.
+ *
+ * @author abrar hayat
+ */
+
+public class ChoroplethLayer extends MapLayer {
+
+    /**
+     * What the shading shows.
+     */
+    public enum Measure {
+        QUAKE_COUNT("quake count"),
+        MAX_MAGNITUDE("largest magnitude");
+
+        private final String label;
+
+        Measure(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private static final int BASE_WORLD_SIZE = 256;
+    // levels 0 to LEVELS - 2 are simplified for that zoom, the last one has the full outlines
+    private static final int LEVELS = 7;
+    // outlines are simplified until they are at most this far from the originals on screen
+    private static final double TOLERANCE_PIXELS = 0.5;
+    private static final double MAX_LATITUDE = 85.0511;
+    private static final float MIN_MAGNITUDE = 2.5f;
+    private static final int FILL_ALPHA = 150;
+    // light yellow through orange to dark red
+    private static final int[] RAMP = {0xFFFFB2, 0xFECC5C, 0xFD8D3C, 0xF03B20, 0xBD0026};
+
+    private final MarkerFilterEngine quakes;
+    private final Map<String, Integer> countryIndices = new HashMap<String, Integer>();
+    private final List<Polygon> polygons = new ArrayList<Polygon>();
+    private final int[] counts;
+    private final float[] maxMagnitudes;
+    private final int[] colors;
+    private final BitSet countedQuakes = new BitSet();
+    private Measure measure = Measure.QUAKE_COUNT;
+    private boolean statsValid;
+
+    /**
+     * @param countries country markers as created from countries.geo.json
+     * @param quakes    the quake filter engine; the shading counts the quakes it shows
+     */
+    public ChoroplethLayer(List<Marker> countries, MarkerFilterEngine quakes) {
+        this.quakes = quakes;
+        for (Marker country : countries) {
+            int index = countryIndices.size();
+            countryIndices.put(country.getStringProperty("name"), index);
+            if (country.getClass() == MultiMarker.class) {
+                for (Marker marker : ((MultiMarker) country).getMarkers()) {
+                    polygons.add(new Polygon(index, (AbstractShapeMarker) marker));
+                }
+            } else {
+                polygons.add(new Polygon(index, (AbstractShapeMarker) country));
+            }
+        }
+        counts = new int[countryIndices.size()];
+        maxMagnitudes = new float[countryIndices.size()];
+        colors = new int[countryIndices.size()];
+        setVisible(false);
+    }
+
+    public Measure getMeasure() {
+        return measure;
+    }
+
+    /**
+     * Cycles from hidden to shading by quake count, then by largest magnitude, then hidden again.
+     */
+    public void cycle() {
+        if (!isVisible()) {
+            measure = Measure.QUAKE_COUNT;
+            setVisible(true);
+        } else if (measure == Measure.QUAKE_COUNT) {
+            measure = Measure.MAX_MAGNITUDE;
+        } else {
+            setVisible(false);
+        }
+        statsValid = false;
+    }
+
+    /**
+     * Marks the statistics as out of date, e.g. when quakes were added or removed without changing
+     * which slots are shown.
+     */
+    public void invalidate() {
+        statsValid = false;
+    }
+
+    @Override
+    public void drawLayer(PGraphics pg, UnfoldingMap map) {
+        updateStats();
+        int zoom = Math.max(0, Math.round((float) (Math.log(map.getZoom()) / Math.log(2))));
+        int level = Math.min(zoom, LEVELS - 1);
+        float[] origin = map.mapDisplay.getObjectFromLocation(new Location(0, 0));
+        float[] east = map.mapDisplay.getObjectFromLocation(new Location(0, 90));
+        float scale = (east[0] - origin[0]) / (BASE_WORLD_SIZE / 4f);
+        float left = origin[0] - BASE_WORLD_SIZE / 2f * scale;
+        float top = origin[1] - BASE_WORLD_SIZE / 2f * scale;
+        // layers draw into the map-sized outer buffer, so the view starts at 0, not at the map's offset
+        float viewLeft = 0;
+        float viewTop = 0;
+        float viewRight = map.mapDisplay.getWidth();
+        float viewBottom = map.mapDisplay.getHeight();
+        pg.pushMatrix();
+        pg.translate(left, top);
+        pg.scale(scale);
+        for (Polygon polygon : polygons) {
+            int color = colors[polygon.country];
+            if (color == 0 || left + polygon.maxX * scale < viewLeft || left + polygon.minX * scale > viewRight
+                    || top + polygon.maxY * scale < viewTop || top + polygon.minY * scale > viewBottom) {
+                continue;
+            }
+            PShape shape = polygon.getShape(pg, level, color);
+            if (shape != null) {
+                pg.shape(shape);
+            }
+        }
+        pg.popMatrix();
+    }
+
+    // recounts only when the filtered quakes or the measure have changed; a selection does not
+    // narrow the shading, so clicking a quake or a city leaves the countries as they were
+    private void updateStats() {
+        BitSet filtered = quakes.getFiltered();
+        if (statsValid && filtered.equals(countedQuakes)) {
+            return;
+        }
+        countedQuakes.clear();
+        countedQuakes.or(filtered);
+        statsValid = true;
+        Arrays.fill(counts, 0);
+        Arrays.fill(maxMagnitudes, 0);
+        for (int slot = filtered.nextSetBit(0); slot >= 0; slot = filtered.nextSetBit(slot + 1)) {
+            EarthquakeMarker quake = (EarthquakeMarker) quakes.getMarker(slot);
+            if (!quake.isOnLand()) {
+                continue;
+            }
+            Integer country = countryIndices.get(quake.getStringProperty("country"));
+            if (country != null) {
+                counts[country]++;
+                maxMagnitudes[country] = Math.max(maxMagnitudes[country], quake.getMagnitude());
+            }
+        }
+        int maxCount = 0;
+        float maxMagnitude = MIN_MAGNITUDE;
+        for (int country = 0; country < counts.length; country++) {
+            maxCount = Math.max(maxCount, counts[country]);
+            maxMagnitude = Math.max(maxMagnitude, maxMagnitudes[country]);
+        }
+        for (int country = 0; country < counts.length; country++) {
+            if (counts[country] == 0) {
+                colors[country] = 0;
+            } else if (measure == Measure.QUAKE_COUNT) {
+                // counts span orders of magnitude, so they are shaded on a log scale
+                colors[country] = rampColor(maxCount == 1 ? 1
+                        : (float) (Math.log(counts[country]) / Math.log(maxCount)));
+            } else {
+                colors[country] = rampColor(maxMagnitude == MIN_MAGNITUDE ? 1
+                        : (maxMagnitudes[country] - MIN_MAGNITUDE) / (maxMagnitude - MIN_MAGNITUDE));
+            }
+        }
+    }
+
+    private static int rampColor(float value) {
+        float position = Math.max(0, Math.min(1, value)) * (RAMP.length - 1);
+        int index = Math.min(RAMP.length - 2, (int) position);
+        float fraction = position - index;
+        int from = RAMP[index];
+        int to = RAMP[index + 1];
+        int red = (int) ((from >> 16 & 0xFF) + ((to >> 16 & 0xFF) - (from >> 16 & 0xFF)) * fraction);
+        int green = (int) ((from >> 8 & 0xFF) + ((to >> 8 & 0xFF) - (from >> 8 & 0xFF)) * fraction);
+        int blue = (int) ((from & 0xFF) + ((to & 0xFF) - (from & 0xFF)) * fraction);
+        return FILL_ALPHA << 24 | red << 16 | green << 8 | blue;
+    }
+
+    private static double worldX(double lon) {
+        return (lon + 180) / 360 * BASE_WORLD_SIZE;
+    }
+
+    private static double worldY(double lat) {
+        double radians = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat)));
+        double mercator = Math.log(Math.tan(radians) + 1 / Math.cos(radians));
+        return (1 - mercator / Math.PI) / 2 * BASE_WORLD_SIZE;
+    }
+
+    /**
+     * Simplifies a closed ring with Douglas-Peucker: the vertex farthest from the chord between two
+     * kept vertices is kept if it is farther than the tolerance, and the halves are simplified in
+     * turn. The ring is treated as a path from its first vertex back to itself.
+     *
+     * @return the x and y of the kept vertices, interleaved
+     */
+    private static float[] simplify(double[] xs, double[] ys, double tolerance) {
+        int n = xs.length;
+        boolean[] keep = new boolean[n + 1];
+        keep[0] = true;
+        keep[n] = true;
+        int[] stack = new int[2 * (n + 1)];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n;
+        double toleranceSquared = tolerance * tolerance;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            double farthest = -1;
+            int farthestIndex = -1;
+            for (int i = first + 1; i < last; i++) {
+                double distance = segmentDistanceSquared(xs[i], ys[i], xs[first], ys[first], xs[last % n], ys[last % n]);
+                if (distance > farthest) {
+                    farthest = distance;
+                    farthestIndex = i;
+                }
+            }
+            if (farthestIndex >= 0 && farthest > toleranceSquared) {
+                keep[farthestIndex] = true;
+                stack[top++] = first;
+                stack[top++] = farthestIndex;
+                stack[top++] = farthestIndex;
+                stack[top++] = last;
+            }
+        }
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                kept++;
+            }
+        }
+        float[] result = new float[2 * kept];
+        int next = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                result[next++] = (float) xs[i];
+                result[next++] = (float) ys[i];
+            }
+        }
+        return result;
+    }
+
+    private static double segmentDistanceSquared(double x, double y, double x0, double y0, double x1, double y1) {
+        double dx = x1 - x0;
+        double dy = y1 - y0;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, ((x - x0) * dx + (y - y0) * dy) / lengthSquared));
+        double ex = x - (x0 + t * dx);
+        double ey = y - (y0 + t * dy);
+        return ex * ex + ey * ey;
+    }
+
+    /**
+     * One polygon of a country: its outline at each level of detail, in world pixels at zoom 0, and
+     * the fill shapes made from them.
+     */
+    private static class Polygon {
+
+        private final int country;
+        private final float[][] outlines = new float[LEVELS][];
+        private final float[][][] holes = new float[LEVELS][][];
+        private final PShape[] shapes = new PShape[LEVELS];
+        private final int[] shapeColors = new int[LEVELS];
+        private float minX = Float.MAX_VALUE;
+        private float minY = Float.MAX_VALUE;
+        private float maxX = -Float.MAX_VALUE;
+        private float maxY = -Float.MAX_VALUE;
+
+        Polygon(int country, AbstractShapeMarker shape) {
+            this.country = country;
+            double[][] outline = project(shape.getLocations());
+            for (int i = 0; i < outline[0].length; i++) {
+                minX = Math.min(minX, (float) outline[0][i]);
+                maxX = Math.max(maxX, (float) outline[0][i]);
+                minY = Math.min(minY, (float) outline[1][i]);
+                maxY = Math.max(maxY, (float) outline[1][i]);
+            }
+            List<List<Location>> interiorRings = shape.getInteriorRings();
+            List<double[][]> projectedHoles = new ArrayList<double[][]>();
+            if (interiorRings != null) {
+                for (List<Location> ring : interiorRings) {
+                    projectedHoles.add(project(ring));
+                }
+            }
+            for (int level = 0; level < LEVELS; level++) {
+                double tolerance = level == LEVELS - 1 ? 0 : TOLERANCE_PIXELS / Math.pow(2, level);
+                outlines[level] = simplify(outline[0], outline[1], tolerance);
+                holes[level] = new float[projectedHoles.size()][];
+                for (int i = 0; i < projectedHoles.size(); i++) {
+                    holes[level][i] = simplify(projectedHoles.get(i)[0], projectedHoles.get(i)[1], tolerance);
+                }
+            }
+        }
+
+        private static double signedArea(float[] ring) {
+            double twiceArea = 0;
+            for (int i = 0; i < ring.length; i += 2) {
+                int next = (i + 2) % ring.length;
+                twiceArea += ring[i] * ring[next + 1] - ring[next] * ring[i + 1];
+            }
+            return twiceArea / 2;
+        }
+
+        private static double[][] project(List<Location> ring) {
+            int n = ring.size();
+            // GeoJSON rings repeat the first vertex at the end
+            if (n > 1 && ring.get(0).equals(ring.get(n - 1))) {
+                n--;
+            }
+            double[][] projected = new double[2][n];
+            for (int i = 0; i < n; i++) {
+                projected[0][i] = worldX(ring.get(i).getLon());
+                projected[1][i] = worldY(ring.get(i).getLat());
+            }
+            return projected;
+        }
+
+        /**
+         * @return the fill shape at the level in the given colour, or null if the polygon is too
+         * small to have an area at that level
+         */
+        PShape getShape(PGraphics pg, int level, int color) {
+            if (shapes[level] == null) {
+                if (outlines[level].length < 6) {
+                    return null;
+                }
+                shapes[level] = createShape(pg, level, color);
+                shapeColors[level] = color;
+            } else if (shapeColors[level] != color) {
+                shapes[level].setFill(color);
+                shapeColors[level] = color;
+            }
+            return shapes[level];
+        }
+
+        private PShape createShape(PGraphics pg, int level, int color) {
+            PShape shape = pg.createShape();
+            shape.beginShape();
+            shape.noStroke();
+            shape.fill(color);
+            float[] outline = outlines[level];
+            for (int i = 0; i < outline.length; i += 2) {
+                shape.vertex(outline[i], outline[i + 1]);
+            }
+            for (float[] hole : holes[level]) {
+                if (hole.length < 6) {
+                    continue;
+                }
+                // a contour only cuts a hole when it winds the other way round
+                boolean reverse = signedArea(hole) * signedArea(outline) > 0;
+                shape.beginContour();
+                for (int i = 0; i < hole.length; i += 2) {
+                    int vertex = reverse ? hole.length - 2 - i : i;
+                    shape.vertex(hole[vertex], hole[vertex + 1]);
+                }
+                shape.endContour();
+            }
+            shape.endShape(PConstants.CLOSE);
+            return shape;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package layers;
+
+import de.fhpotsdam.unfolding.UnfoldingMap;
+import de.fhpotsdam.unfolding.geo.Location;
+import markers.EarthquakeMarker;
+import processing.core.PConstants;
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A kernel density heatmap of quake activity. Each quake adds a magnitude weighted Gaussian kernel
+ * to a density grid, and adding or expiring a quake only updates the cells under its kernel. The
+ * grid is split into tiles that are computed and colored in parallel, and only dirty tiles are
+ * recolored, so the per-frame cost is one texture draw however many quakes there are.
+ *
+ * Columns are spaced evenly in longitude and rows evenly in Web Mercator, so the texture can be
+ * drawn as a single rectangle on the map. Columns wrap around the date line, so a kernel running
+ * past one edge of the grid continues at the other.
+ *
+ * @author abrar hayat
+ */
+
+public class HeatmapLayer extends MapLayer {
+
+    private static final int GRID_SIZE = 512;
+    private static final int TILE_SIZE = 64;
+    private static final int TILES_PER_SIDE = GRID_SIZE / TILE_SIZE;
+    private static final float MAX_LATITUDE = 85.0511f;
+    private static final float EARTH_CIRCUMFERENCE_KM = 40075;
+    // kernel width grows with magnitude, and is capped so one quake cannot dirty the whole grid
+    private static final float SIGMA_KM_PER_MAGNITUDE = 50;
+    private static final int MAX_KERNEL_RADIUS = 2 * TILE_SIZE;
+    // density at which a cell is about two thirds saturated
+    private static final float DENSITY_SCALE = 8;
+    private static final int MAX_ALPHA = 190;
+
+    private final float[] density = new float[GRID_SIZE * GRID_SIZE];
+    private final BitSet dirtyTiles = new BitSet(TILES_PER_SIDE * TILES_PER_SIDE);
+    private final PImage texture = new PImage(GRID_SIZE, GRID_SIZE, PConstants.ARGB);
+    private final Location topLeft = new Location(MAX_LATITUDE, -180);
+    private final Location bottomRight = new Location(-MAX_LATITUDE, 180);
+    private final ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "heatmap");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Work on one tile of the grid, run for many tiles at once.
+     */
+    private interface TileTask {
+        void run(int tile, int x0, int y0);
+    }
+
+    public HeatmapLayer() {
+        setVisible(false);
+    }
+
+    /**
+     * Adds many quakes at once, computing every tile in parallel from the kernels that overlap it.
+     */
+    public void addAll(Collection<EarthquakeMarker> quakes) {
+        final List<List<Kernel>> kernelsByTile = new ArrayList<List<Kernel>>();
+        for (int tile = 0; tile < TILES_PER_SIDE * TILES_PER_SIDE; tile++) {
+            kernelsByTile.add(new ArrayList<Kernel>());
+        }
+        BitSet covered = new BitSet(TILES_PER_SIDE * TILES_PER_SIDE);
+        BitSet touched = new BitSet(TILES_PER_SIDE * TILES_PER_SIDE);
+        for (EarthquakeMarker quake : quakes) {
+            Kernel kernel = new Kernel(quake, 1);
+            kernel.markTiles(touched);
+            for (int tile = touched.nextSetBit(0); tile >= 0; tile = touched.nextSetBit(tile + 1)) {
+                kernelsByTile.get(tile).add(kernel);
+            }
+            covered.or(touched);
+            touched.clear();
+        }
+        forEachTile(covered, new TileTask() {
+            @Override
+            public void run(int tile, int x0, int y0) {
+                for (Kernel kernel : kernelsByTile.get(tile)) {
+                    kernel.splat(density, x0, y0, x0 + TILE_SIZE - 1, y0 + TILE_SIZE - 1);
+                }
+            }
+        });
+        dirtyTiles.or(covered);
+    }
+
+    public void add(EarthquakeMarker quake) {
+        splat(new Kernel(quake, 1));
+    }
+
+    /**
+     * Removes a quake that was added before, subtracting exactly the kernel it added.
+     */
+    public void remove(EarthquakeMarker quake) {
+        splat(new Kernel(quake, -1));
+    }
+
+    @Override
+    public void drawLayer(PGraphics pg, UnfoldingMap map) {
+        recolorDirtyTiles();
+        float[] topLeftPosition = map.mapDisplay.getObjectFromLocation(topLeft);
+        float[] bottomRightPosition = map.mapDisplay.getObjectFromLocation(bottomRight);
+        pg.image(texture, topLeftPosition[0], topLeftPosition[1], bottomRightPosition[0] - topLeftPosition[0],
+                bottomRightPosition[1] - topLeftPosition[1]);
+    }
+
+    private void splat(Kernel kernel) {
+        kernel.splat(density, 0, kernel.minY, GRID_SIZE - 1, kernel.maxY);
+        kernel.markTiles(dirtyTiles);
+    }
+
+    private void recolorDirtyTiles() {
+        if (dirtyTiles.isEmpty()) {
+            return;
+        }
+        texture.loadPixels();
+        final int[] pixels = texture.pixels;
+        forEachTile(dirtyTiles, new TileTask() {
+            @Override
+            public void run(int tile, int x0, int y0) {
+                for (int y = y0; y < y0 + TILE_SIZE; y++) {
+                    for (int x = x0; x < x0 + TILE_SIZE; x++) {
+                        pixels[y * GRID_SIZE + x] = color(density[y * GRID_SIZE + x]);
+                    }
+                }
+            }
+        });
+        dirtyTiles.clear();
+        texture.updatePixels();
+    }
+
+    // runs the task for every given tile on the workers, and returns when all are done
+    private void forEachTile(BitSet tiles, final TileTask task) {
+        List<Callable<Void>> calls = new ArrayList<Callable<Void>>(tiles.cardinality());
+        for (int tile = tiles.nextSetBit(0); tile >= 0; tile = tiles.nextSetBit(tile + 1)) {
+            final int index = tile;
+            calls.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    task.run(index, (index % TILES_PER_SIDE) * TILE_SIZE, (index / TILES_PER_SIDE) * TILE_SIZE);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> done : workers.invokeAll(calls)) {
+                done.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Heatmap tile failed", e.getCause());
+        }
+    }
+
+    // transparent through yellow to red as the density saturates
+    private static int color(float value) {
+        if (value <= 0) {
+            return 0;
+        }
+        float intensity = 1 - (float) Math.exp(-value / DENSITY_SCALE);
+        int alpha = (int) (MAX_ALPHA * Math.min(1, intensity * 2));
+        int green = (int) (255 * (1 - intensity));
+        return alpha << 24 | 255 << 16 | green << 8;
+    }
+
+    private static float gridX(float lon) {
+        return (lon + 180) / 360 * GRID_SIZE;
+    }
+
+    private static float gridY(float lat) {
+        double radians = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat)));
+        double mercator = Math.log(Math.tan(radians) + 1 / Math.cos(radians));
+        return (float) ((1 - mercator / Math.PI) / 2 * GRID_SIZE);
+    }
+
+    /**
+     * The kernel of one quake in grid cells. It is fully determined by the quake, so removing a
+     * quake subtracts the same values it added. Its columns are not wrapped, so they may run past
+     * either edge of the grid by up to the kernel radius.
+     */
+    private static class Kernel {
+
+        private final float centerX;
+        private final float centerY;
+        private final float weight;
+        private final float twoSigmaSquared;
+        private final int radius;
+        private final int minX;
+        private final int minY;
+        private final int maxX;
+        private final int maxY;
+
+        Kernel(EarthquakeMarker quake, int sign) {
+            Location location = quake.getLocation();
+            centerX = gridX(location.getLon());
+            centerY = gridY(location.getLat());
+            weight = sign * quake.getMagnitude();
+            // Mercator is conformal, so one scale applies to both axes at this latitude
+            double cellsPerKm = GRID_SIZE / (EARTH_CIRCUMFERENCE_KM * Math.cos(Math.toRadians(location.getLat())));
+            float sigma = (float) Math.max(1, SIGMA_KM_PER_MAGNITUDE * quake.getMagnitude() * cellsPerKm);
+            twoSigmaSquared = 2 * sigma * sigma;
+            radius = Math.min(MAX_KERNEL_RADIUS, (int) Math.ceil(3 * sigma));
+            minX = (int) Math.floor(centerX) - radius;
+            minY = clamp((int) centerY - radius);
+            maxX = (int) Math.floor(centerX) + radius;
+            maxY = clamp((int) centerY + radius);
+        }
+
+        /**
+         * Adds this kernel to the cells of the given inclusive rectangle of the grid that it covers,
+         * wrapping its columns around the date line. The Gaussian is separable, so only one exp per
+         * column and per row is needed.
+         */
+        void splat(float[] density, int x0, int y0, int x1, int y1) {
+            int fromY = Math.max(y0, minY);
+            int toY = Math.min(y1, maxY);
+            if (fromY > toY) {
+                return;
+            }
+            // the rectangle as seen one grid width to the west, in place and one to the east
+            for (int shift = -GRID_SIZE; shift <= GRID_SIZE; shift += GRID_SIZE) {
+                int fromX = Math.max(x0 + shift, minX);
+                int toX = Math.min(x1 + shift, maxX);
+                if (fromX > toX) {
+                    continue;
+                }
+                float[] columnWeights = new float[toX - fromX + 1];
+                for (int x = fromX; x <= toX; x++) {
+                    float dx = x + 0.5f - centerX;
+                    columnWeights[x - fromX] = (float) Math.exp(-dx * dx / twoSigmaSquared);
+                }
+                for (int y = fromY; y <= toY; y++) {
+                    float dy = y + 0.5f - centerY;
+                    float rowWeight = weight * (float) Math.exp(-dy * dy / twoSigmaSquared);
+                    int offset = y * GRID_SIZE - shift;
+                    for (int x = fromX; x <= toX; x++) {
+                        density[offset + x] += rowWeight * columnWeights[x - fromX];
+                    }
+                }
+            }
+        }
+
+        // sets the bits of the tiles this kernel covers
+        void markTiles(BitSet tiles) {
+            for (int tileY = minY / TILE_SIZE; tileY <= maxY / TILE_SIZE; tileY++) {
+                for (int tileX = Math.floorDiv(minX, TILE_SIZE); tileX <= Math.floorDiv(maxX, TILE_SIZE); tileX++) {
+                    tiles.set(tileY * TILES_PER_SIDE + Math.floorMod(tileX, TILES_PER_SIDE));
+                }
+            }
+        }
+
+        private static int clamp(int cell) {
+            return Math.max(0, Math.min(GRID_SIZE - 1, cell));
+        }
+    }
+}
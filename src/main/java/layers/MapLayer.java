@@ -0,0 +1,53 @@
+package layers;
+
+import de.fhpotsdam.unfolding.UnfoldingMap;
+import de.fhpotsdam.unfolding.geo.Location;
+import de.fhpotsdam.unfolding.marker.AbstractMarker;
+import processing.core.PGraphics;
+
+/**
+ * Base for whole-map overlays that are drawn through Unfolding's marker managers, so they are
+ * layered with the markers and follow panning and zooming. A layer draws itself in
+ * {@link #drawLayer(PGraphics, UnfoldingMap)} and is never hit by the mouse.
+ *
+ * @author abrar hayat
+ */
+
+public abstract class MapLayer extends AbstractMarker {
+
+    private boolean visible = true;
+
+    public MapLayer() {
+        super(new Location(0, 0));
+    }
+
+    public abstract void drawLayer(PGraphics pg, UnfoldingMap map);
+
+    @Override
+    public void draw(UnfoldingMap map) {
+        if (visible) {
+            drawLayer(map.mapDisplay.getOuterPG(), map);
+        }
+    }
+
+    @Override
+    public void draw(PGraphics pg, float x, float y) {
+    }
+
+    @Override
+    protected boolean isInside(float checkX, float checkY, float x, float y) {
+        return false;
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public void setVisible(boolean visible) {
+        this.visible = visible;
+    }
+
+    public void toggleVisible() {
+        visible = !visible;
+    }
+}
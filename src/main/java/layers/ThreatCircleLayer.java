@@ -0,0 +1,243 @@
+package layers;
+
+import de.fhpotsdam.unfolding.UnfoldingMap;
+import de.fhpotsdam.unfolding.geo.Location;
+import de.fhpotsdam.unfolding.utils.GeoUtils;
+import filter.MarkerFilterEngine;
+import markers.EarthquakeMarker;
+import processing.core.PConstants;
+import processing.core.PGraphics;
+import processing.core.PShape;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Draws the threat circles of quakes as geodesic polygons: the points at the threat distance in
+ * every direction, which on a Mercator map are stretched towards the poles and may wrap around one.
+ *
+ * Each quake's ring of vertices is computed once. For each zoom level it is thinned to the number
+ * of vertices that keeps the polygon smooth at that size, projected to world pixels and kept as a
+ * retained PShape, so a frame only transforms and draws the cached shapes. The vertices are kept
+ * relative to the projected center of the circle and each shape is translated to its quake, since
+ * absolute world pixels outgrow float precision at street level zooms.
+ *
+ * @author abrar hayat
+ */
+
+public class ThreatCircleLayer extends MapLayer {
+
+    private static final int RING_VERTICES = 256;
+    private static final int MIN_VERTICES = 16;
+    // target length of a polygon edge on screen
+    private static final float SEGMENT_PIXELS = 8;
+    private static final int MAX_ZOOM = 20;
+    private static final double MAX_LATITUDE = 85.0511;
+    private static final double EARTH_CIRCUMFERENCE_KM = 2 * Math.PI * GeoUtils.EARTH_RADIUS_KM;
+    private static final int FILL_COLOR = 0x30FF0000;
+    private static final int STROKE_COLOR = 0xA0B40000;
+
+    private final MarkerFilterEngine quakes;
+    private final Map<EarthquakeMarker, ThreatCircle> circles = new HashMap<EarthquakeMarker, ThreatCircle>();
+    private EarthquakeMarker highlighted;
+    private boolean showAll;
+
+    /**
+     * @param quakes the quake filter engine; showing all circles shows those of the visible quakes
+     */
+    public ThreatCircleLayer(MarkerFilterEngine quakes) {
+        this.quakes = quakes;
+    }
+
+    /**
+     * Sets the quake whose circle is shown even when not all circles are, or null for none.
+     */
+    public void setHighlighted(EarthquakeMarker quake) {
+        highlighted = quake;
+    }
+
+    public void toggleShowAll() {
+        showAll = !showAll;
+    }
+
+    public boolean isShowingAll() {
+        return showAll;
+    }
+
+    /**
+     * Drops the cached shapes of a quake that is no longer on the map.
+     */
+    public void remove(EarthquakeMarker quake) {
+        circles.remove(quake);
+        if (quake == highlighted) {
+            highlighted = null;
+        }
+    }
+
+    @Override
+    public void drawLayer(PGraphics pg, UnfoldingMap map) {
+        if (!showAll && highlighted == null) {
+            return;
+        }
+        int zoom = Math.max(0, Math.min(MAX_ZOOM, Math.round((float) (Math.log(map.getZoom()) / Math.log(2)))));
+        double worldSize = 256 * Math.pow(2, zoom);
+        // the map is a translated and scaled Mercator, so two reference points give the scale
+        float[] origin = map.mapDisplay.getObjectFromLocation(new Location(0, 0));
+        float[] east = map.mapDisplay.getObjectFromLocation(new Location(0, 90));
+        float scale = (float) ((east[0] - origin[0]) / (worldSize / 4));
+        if (showAll) {
+            BitSet visible = quakes.getVisible();
+            for (int slot = visible.nextSetBit(0); slot >= 0; slot = visible.nextSetBit(slot + 1)) {
+                draw(pg, map, circleOf((EarthquakeMarker) quakes.getMarker(slot)), zoom, scale);
+            }
+        }
+        if (highlighted != null && !(showAll && quakes.isVisible(highlighted.getFilterSlot()))) {
+            draw(pg, map, circleOf(highlighted), zoom, scale);
+        }
+    }
+
+    private static void draw(PGraphics pg, UnfoldingMap map, ThreatCircle circle, int zoom, float scale) {
+        float[] center = map.mapDisplay.getObjectFromLocation(circle.center);
+        pg.pushMatrix();
+        pg.translate(center[0], center[1]);
+        pg.scale(scale);
+        pg.shape(circle.getShape(pg, zoom));
+        pg.popMatrix();
+    }
+
+    private ThreatCircle circleOf(EarthquakeMarker quake) {
+        ThreatCircle circle = circles.get(quake);
+        if (circle == null) {
+            circle = new ThreatCircle(quake);
+            circles.put(quake, circle);
+        }
+        return circle;
+    }
+
+    private static double worldX(double lon, double worldSize) {
+        return (lon + 180) / 360 * worldSize;
+    }
+
+    private static double worldY(double lat, double worldSize) {
+        double radians = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat)));
+        double mercator = Math.log(Math.tan(radians) + 1 / Math.cos(radians));
+        return (1 - mercator / Math.PI) / 2 * worldSize;
+    }
+
+    /**
+     * The vertex ring of one quake's threat circle and its shapes per zoom level.
+     */
+    private static class ThreatCircle {
+
+        private final Location center;
+        private final double centerLat;
+        private final double centerLon;
+        private final double radiusKm;
+        private final double[] lats = new double[RING_VERTICES];
+        // continuous longitudes, which may run past +-180 so the ring does not jump at the date line
+        private final double[] lons = new double[RING_VERTICES];
+        private final boolean containsNorthPole;
+        private final boolean containsSouthPole;
+        private final PShape[] shapes = new PShape[MAX_ZOOM + 1];
+
+        ThreatCircle(EarthquakeMarker quake) {
+            center = quake.getLocation();
+            centerLat = center.getLat();
+            centerLon = center.getLon();
+            // a cap reaching the antipode would cover the whole globe
+            radiusKm = Math.min(quake.threatCircle(), EARTH_CIRCUMFERENCE_KM / 2 * 0.999);
+            double angle = radiusKm / GeoUtils.EARTH_RADIUS_KM;
+            double angleDegrees = Math.toDegrees(angle);
+            containsNorthPole = angleDegrees > 90 - centerLat;
+            containsSouthPole = angleDegrees > 90 + centerLat;
+            // with both poles inside, the ring is traced around the antipode as the edge of a hole
+            double ringLat = containsNorthPole && containsSouthPole ? -centerLat : centerLat;
+            double ringLon = containsNorthPole && containsSouthPole ? centerLon + 180 : centerLon;
+            double ringAngle = containsNorthPole && containsSouthPole ? Math.PI - angle : angle;
+            computeRing(Math.toRadians(ringLat), ringLon, ringAngle);
+        }
+
+        private void computeRing(double lat, double lon, double angle) {
+            double previousLon = lon;
+            for (int i = 0; i < RING_VERTICES; i++) {
+                double bearing = 2 * Math.PI * i / RING_VERTICES;
+                double vertexLat = Math.asin(Math.sin(lat) * Math.cos(angle)
+                        + Math.cos(lat) * Math.sin(angle) * Math.cos(bearing));
+                double deltaLon = Math.atan2(Math.sin(bearing) * Math.sin(angle) * Math.cos(lat),
+                        Math.cos(angle) - Math.sin(lat) * Math.sin(vertexLat));
+                double vertexLon = lon + Math.toDegrees(deltaLon);
+                // unwrap, so consecutive vertices never differ by more than half a turn
+                vertexLon += 360 * Math.round((previousLon - vertexLon) / 360);
+                lats[i] = Math.toDegrees(vertexLat);
+                lons[i] = vertexLon;
+                previousLon = vertexLon;
+            }
+        }
+
+        PShape getShape(PGraphics pg, int zoom) {
+            if (shapes[zoom] == null) {
+                shapes[zoom] = createShape(pg, zoom);
+            }
+            return shapes[zoom];
+        }
+
+        private PShape createShape(PGraphics pg, int zoom) {
+            double worldSize = 256 * Math.pow(2, zoom);
+            double centerX = worldX(centerLon, worldSize);
+            double centerY = worldY(centerLat, worldSize);
+            int stride = strideFor(worldSize);
+            PShape shape = pg.createShape();
+            shape.beginShape();
+            shape.fill(FILL_COLOR);
+            shape.stroke(STROKE_COLOR);
+            shape.strokeWeight(1);
+            if (containsNorthPole && containsSouthPole) {
+                // everything but the cap around the antipode
+                double right = worldX(centerLon + 360, worldSize);
+                vertex(shape, centerX, 0, centerX, centerY);
+                vertex(shape, right, 0, centerX, centerY);
+                vertex(shape, right, worldSize, centerX, centerY);
+                vertex(shape, centerX, worldSize, centerX, centerY);
+                shape.beginContour();
+                for (int i = RING_VERTICES - stride; i >= 0; i -= stride) {
+                    vertex(shape, worldX(lons[i], worldSize), worldY(lats[i], worldSize), centerX, centerY);
+                }
+                shape.endContour();
+            } else {
+                for (int i = 0; i < RING_VERTICES; i += stride) {
+                    vertex(shape, worldX(lons[i], worldSize), worldY(lats[i], worldSize), centerX, centerY);
+                }
+                if (containsNorthPole || containsSouthPole) {
+                    // the ring circles the pole, so it is closed along the map's top or bottom edge
+                    double poleY = containsNorthPole ? 0 : worldSize;
+                    double lastLon = lons[RING_VERTICES - stride];
+                    double firstLon = lons[0];
+                    double wrappedX = worldX(firstLon + 360 * Math.signum(lastLon - firstLon), worldSize);
+                    vertex(shape, wrappedX, worldY(lats[0], worldSize), centerX, centerY);
+                    vertex(shape, wrappedX, poleY, centerX, centerY);
+                    vertex(shape, worldX(firstLon, worldSize), poleY, centerX, centerY);
+                }
+            }
+            shape.endShape(PConstants.CLOSE);
+            return shape;
+        }
+
+        // world pixels are subtracted in double precision, the offsets from the center fit a float
+        private static void vertex(PShape shape, double x, double y, double centerX, double centerY) {
+            shape.vertex((float) (x - centerX), (float) (y - centerY));
+        }
+
+        // take every stride-th vertex of the ring, enough for edges of about SEGMENT_PIXELS
+        private int strideFor(double worldSize) {
+            double cosLat = Math.max(0.05, Math.cos(Math.toRadians(centerLat)));
+            double pixelsPerKm = worldSize / (EARTH_CIRCUMFERENCE_KM * cosLat);
+            double circumferencePixels = 2 * Math.PI * radiusKm * pixelsPerKm;
+            int stride = RING_VERTICES / MIN_VERTICES;
+            while (stride > 1 && circumferencePixels / (RING_VERTICES / stride) > SEGMENT_PIXELS) {
+                stride /= 2;
+            }
+            return stride;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package loadtest;
+
+import de.fhpotsdam.unfolding.data.Feature;
+import de.fhpotsdam.unfolding.data.GeoJSONReader;
+import de.fhpotsdam.unfolding.data.PointFeature;
+import de.fhpotsdam.unfolding.marker.Marker;
+import de.fhpotsdam.unfolding.utils.MapUtils;
+import parsing.ParseFeed;
+import processing.data.JSONObject;
+import processing.data.XML;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Reads the files the load test tools share without an applet, which they run without.
+ *
+ * @author abrar hayat
+ */
+
+class FeedFiles {
+
+    static final String DEFAULT_COUNTRIES = "data/countries.geo.json";
+
+    private FeedFiles() {
+    }
+
+    /**
+     * @return the country markers, as the map creates them from countries.geo.json
+     */
+    static List<Marker> loadCountries(File file) throws IOException {
+        String json = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        // the reader only needs an applet to load files by name, which is done here instead
+        List<Feature> countries = GeoJSONReader.loadDataFromJSON(null, json);
+        return MapUtils.createSimpleMarkers(countries);
+    }
+
+    /**
+     * Parses a feed with ParseFeed, choosing the format by file name as the map does.
+     */
+    static List<PointFeature> parseFeed(File file) throws IOException {
+        Reader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(file.toPath()),
+                StandardCharsets.UTF_8), 1 << 16);
+        try {
+            if (isGeoJson(file)) {
+                return ParseFeed.parseEarthquakeGeoJSON(new JSONObject(reader));
+            }
+            return ParseFeed.parseEarthquake(new XML(reader));
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Could not parse " + file + ": " + e.getMessage(), e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    static boolean isGeoJson(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".geojson") || name.endsWith(".json");
+    }
+}
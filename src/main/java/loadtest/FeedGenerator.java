@@ -0,0 +1,400 @@
+package loadtest;
+
+import de.fhpotsdam.unfolding.geo.Location;
+import de.fhpotsdam.unfolding.marker.AbstractShapeMarker;
+import de.fhpotsdam.unfolding.marker.Marker;
+import de.fhpotsdam.unfolding.marker.MultiMarker;
+import spatial.CountryClassifier;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes synthetic earthquake feeds in the USGS Atom or GeoJSON format, as large as needed to
+ * reproduce peak loads, which the live feed of a few hundred entries never reaches:
+ *
+ * <pre>
+ *   java loadtest.FeedGenerator quakes.atom --count=1000000 [--days=7] [--land=0.4]
+ *       [--clustered=0.3] [--seed=1] [--countries=data/countries.geo.json]
+ * </pre>
+ *
+ * The format follows the file name, GeoJSON for .geojson or .json and Atom otherwise. Background
+ * quakes are placed inside the country polygons, in proportion to their area, or at sea, with
+ * magnitudes from the Gutenberg-Richter law and depths from a mix of shallow, intermediate and deep
+ * events. The clustered fraction are aftershocks of the larger background quakes, with Omori law
+ * delays, so feeds also exercise the sequence detection.
+ *
+ * @author abrar hayat
+ */
+
+public class FeedGenerator {
+
+    // the threshold of the 2.5_week feed
+    private static final double MIN_MAGNITUDE = 2.5;
+    // titles carry the magnitude as three characters, as in "M 4.5"
+    private static final double MAX_MAGNITUDE = 9.9;
+    private static final double GUTENBERG_RICHTER_B = 1.0;
+    private static final double MIN_MAINSHOCK_MAGNITUDE = 4.5;
+    // aftershock productivity grows by this power of ten per unit of mainshock magnitude
+    private static final double PRODUCTIVITY_ALPHA = 0.8;
+    // Bath's law: the largest aftershock is about this much smaller than the mainshock
+    private static final double BATH_DROP = 1.2;
+    private static final double OMORI_C_DAYS = 0.05;
+    private static final double OMORI_P = 1.2;
+    private static final double MAX_OCEAN_LATITUDE = 70;
+    private static final double KM_PER_DEGREE = 111.2;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    // the sort packs the index of a quake into the low bits of its age
+    private static final int INDEX_BITS = 24;
+    private static final int MAX_COUNT = 1 << INDEX_BITS;
+    private static final int MAX_ATTEMPTS = 100;
+    private static final DateTimeFormatter SUMMARY_TIME_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneOffset.UTC);
+
+    private final Random random;
+    private final CountryClassifier classifier;
+    private final List<LandPolygon> polygons = new ArrayList<LandPolygon>();
+    private final double[] cumulativeArea;
+
+    private float[] lats;
+    private float[] lons;
+    private float[] magnitudes;
+    private float[] depths;
+    private long[] times;
+    private String[] countries;
+
+    public FeedGenerator(List<Marker> countryMarkers, long seed) {
+        random = new Random(seed);
+        classifier = new CountryClassifier(countryMarkers);
+        for (Marker country : countryMarkers) {
+            if (country.getClass() == MultiMarker.class) {
+                for (Marker marker : ((MultiMarker) country).getMarkers()) {
+                    polygons.add(new LandPolygon((AbstractShapeMarker) marker));
+                }
+            } else {
+                polygons.add(new LandPolygon((AbstractShapeMarker) country));
+            }
+        }
+        cumulativeArea = new double[polygons.size()];
+        double total = 0;
+        for (int i = 0; i < polygons.size(); i++) {
+            total += polygons.get(i).area;
+            cumulativeArea[i] = total;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = new Options(args);
+        if (options.getArguments().size() != 1) {
+            System.err.println("Usage: FeedGenerator <output file> [--count=N] [--days=D] [--land=fraction]"
+                    + " [--clustered=fraction] [--seed=S] [--countries=file]");
+            System.exit(2);
+        }
+        File out = new File(options.getArguments().get(0));
+        int count = (int) options.getLong("count", 10000);
+        if (count < 1 || count >= MAX_COUNT) {
+            throw new IllegalArgumentException("count must be between 1 and " + (MAX_COUNT - 1));
+        }
+        File countryFile = new File(options.getString("countries", FeedFiles.DEFAULT_COUNTRIES));
+        FeedGenerator generator = new FeedGenerator(FeedFiles.loadCountries(countryFile), options.getLong("seed", 1));
+
+        long start = System.nanoTime();
+        long end = System.currentTimeMillis();
+        generator.generate(count, end - (long) (options.getDouble("days", 7) * DAY_MILLIS), end,
+                options.getDouble("land", 0.4), options.getDouble("clustered", 0.3));
+        generator.write(out, end);
+        System.out.println(String.format("Wrote %d quakes to %s (%d KB) in %d ms", count, out,
+                out.length() / 1024, (System.nanoTime() - start) / 1000000));
+    }
+
+    /**
+     * Generates the quakes between the two times.
+     *
+     * @param landFraction      the fraction of background quakes placed on land
+     * @param clusteredFraction the fraction of all quakes that are aftershocks
+     */
+    public void generate(int count, long from, long to, double landFraction, double clusteredFraction) {
+        lats = new float[count];
+        lons = new float[count];
+        magnitudes = new float[count];
+        depths = new float[count];
+        times = new long[count];
+        countries = new String[count];
+
+        int background = Math.max(1, (int) Math.round(count * (1 - clusteredFraction)));
+        for (int i = 0; i < background; i++) {
+            if (random.nextDouble() < landFraction) {
+                placeOnLand(i);
+            } else {
+                placeAtSea(i);
+            }
+            magnitudes[i] = (float) gutenbergRichter(MAX_MAGNITUDE);
+            depths[i] = roundedDepth(backgroundDepth());
+            times[i] = from + (long) (random.nextDouble() * (to - from));
+        }
+
+        // aftershocks go to the larger quakes, more of them the larger the quake
+        int[] mainshocks = new int[background];
+        double[] cumulativeProductivity = new double[background];
+        int mainshockCount = 0;
+        double total = 0;
+        for (int i = 0; i < background; i++) {
+            if (magnitudes[i] >= MIN_MAINSHOCK_MAGNITUDE) {
+                total += Math.pow(10, PRODUCTIVITY_ALPHA * (magnitudes[i] - MIN_MAINSHOCK_MAGNITUDE));
+                mainshocks[mainshockCount] = i;
+                cumulativeProductivity[mainshockCount++] = total;
+            }
+        }
+        for (int i = background; i < count; i++) {
+            if (mainshockCount == 0) {
+                placeAtSea(i);
+                magnitudes[i] = (float) gutenbergRichter(MAX_MAGNITUDE);
+                depths[i] = roundedDepth(backgroundDepth());
+                times[i] = from + (long) (random.nextDouble() * (to - from));
+            } else {
+                int pick = Arrays.binarySearch(cumulativeProductivity, 0, mainshockCount, random.nextDouble() * total);
+                placeAftershock(i, mainshocks[Math.min(mainshockCount - 1, pick < 0 ? -pick - 1 : pick)], to);
+            }
+        }
+    }
+
+    /**
+     * Writes the generated quakes, newest first as in the USGS feeds.
+     */
+    public void write(File out, long generated) throws IOException {
+        int count = times.length;
+        long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = ((generated - times[i]) << INDEX_BITS) | i;
+        }
+        Arrays.sort(order);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(out.toPath()),
+                StandardCharsets.UTF_8), 1 << 16);
+        try {
+            if (FeedFiles.isGeoJson(out)) {
+                writeGeoJson(writer, order, generated);
+            } else {
+                writeAtom(writer, order, generated);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void writeAtom(Writer writer, long[] order, long generated) throws IOException {
+        writer.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                + "<feed xmlns=\"http://www.w3.org/2005/Atom\" xmlns:georss=\"http://www.georss.org/georss\">\n"
+                + "<title>Synthetic earthquakes</title>\n<updated>" + Instant.ofEpochMilli(generated)
+                + "</updated>\n");
+        StringBuilder entry = new StringBuilder(512);
+        for (long packed : order) {
+            int i = (int) (packed & (MAX_COUNT - 1));
+            entry.setLength(0);
+            entry.append("<entry><id>urn:earthquake-usgs-gov:sy:").append(id(i)).append("</id><title>");
+            appendXml(entry, title(i));
+            entry.append("</title><updated>").append(Instant.ofEpochMilli(times[i]))
+                    .append("</updated><summary type=\"html\"><![CDATA[<dl><dt>Time</dt><dd>")
+                    .append(SUMMARY_TIME_FORMAT.format(Instant.ofEpochMilli(times[i])))
+                    .append(" UTC</dd><dt>Depth</dt><dd>").append(depths[i])
+                    .append(" km</dd></dl>]]></summary><georss:point>").append(lats[i]).append(' ').append(lons[i])
+                    .append("</georss:point><georss:elev>").append(-Math.round(depths[i] * 1000))
+                    .append("</georss:elev><category label=\"Age\" term=\"").append(age(generated - times[i]))
+                    .append("\"/></entry>\n");
+            writer.append(entry);
+        }
+        writer.write("</feed>\n");
+    }
+
+    private void writeGeoJson(Writer writer, long[] order, long generated) throws IOException {
+        writer.write("{\"type\":\"FeatureCollection\",\"metadata\":{\"generated\":" + generated
+                + ",\"title\":\"Synthetic earthquakes\",\"count\":" + order.length + "},\"features\":[\n");
+        StringBuilder feature = new StringBuilder(512);
+        for (int n = 0; n < order.length; n++) {
+            int i = (int) (order[n] & (MAX_COUNT - 1));
+            feature.setLength(0);
+            feature.append("{\"type\":\"Feature\",\"properties\":{\"mag\":").append(roundedMagnitude(i))
+                    .append(",\"time\":").append(times[i]).append(",\"title\":\"");
+            appendJson(feature, title(i));
+            feature.append("\"},\"geometry\":{\"type\":\"Point\",\"coordinates\":[").append(lons[i]).append(',')
+                    .append(lats[i]).append(',').append(depths[i]).append("]},\"id\":\"").append(id(i)).append("\"}");
+            if (n < order.length - 1) {
+                feature.append(',');
+            }
+            writer.append(feature).append('\n');
+        }
+        writer.write("]}\n");
+    }
+
+    private void placeOnLand(int i) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            int pick = Arrays.binarySearch(cumulativeArea, random.nextDouble() * cumulativeArea[cumulativeArea.length - 1]);
+            LandPolygon polygon = polygons.get(Math.min(polygons.size() - 1, pick < 0 ? -pick - 1 : pick));
+            // a few tries within the bounding box find the inside of all but the most ragged shapes
+            for (int inner = 0; inner < MAX_ATTEMPTS; inner++) {
+                float lat = (float) (polygon.minLat + random.nextDouble() * (polygon.maxLat - polygon.minLat));
+                float lon = (float) (polygon.minLon + random.nextDouble() * (polygon.maxLon - polygon.minLon));
+                if (polygon.shape.isInsideByLocation(lat, lon)) {
+                    place(i, lat, lon);
+                    return;
+                }
+            }
+        }
+        placeAtSea(i);
+    }
+
+    private void placeAtSea(int i) {
+        double maxSin = Math.sin(Math.toRadians(MAX_OCEAN_LATITUDE));
+        for (int attempt = 0; ; attempt++) {
+            // uniform over the sphere, not over latitude
+            float lat = (float) Math.toDegrees(Math.asin((random.nextDouble() * 2 - 1) * maxSin));
+            float lon = (float) (random.nextDouble() * 360 - 180);
+            place(i, lat, lon);
+            if (countries[i] == null || attempt == MAX_ATTEMPTS) {
+                return;
+            }
+        }
+    }
+
+    private void placeAftershock(int i, int mainshock, long to) {
+        float mainMagnitude = magnitudes[mainshock];
+        // most aftershocks fall well within the Gardner-Knopoff window of the mainshock
+        double spreadKm = Math.pow(10, 0.1238 * mainMagnitude + 0.983) / 3;
+        double distanceKm = Math.abs(random.nextGaussian()) * spreadKm;
+        double bearing = random.nextDouble() * 2 * Math.PI;
+        float lat = (float) Math.max(-89, Math.min(89, lats[mainshock] + distanceKm * Math.cos(bearing) / KM_PER_DEGREE));
+        double cosLat = Math.max(0.05, Math.cos(Math.toRadians(lat)));
+        double lon = lons[mainshock] + distanceKm * Math.sin(bearing) / (KM_PER_DEGREE * cosLat);
+        place(i, lat, (float) (lon - 360 * Math.floor((lon + 180) / 360)));
+        magnitudes[i] = (float) gutenbergRichter(Math.max(MIN_MAGNITUDE, mainMagnitude - BATH_DROP));
+        depths[i] = roundedDepth(Math.min(700, Math.abs(depths[mainshock] + random.nextGaussian() * 5)));
+        times[i] = times[mainshock] + (long) (omoriDelayDays((to - times[mainshock]) / (double) DAY_MILLIS) * DAY_MILLIS);
+    }
+
+    private void place(int i, float lat, float lon) {
+        lats[i] = Math.round(lat * 10000) / 10000f;
+        lons[i] = Math.round(lon * 10000) / 10000f;
+        countries[i] = classifier.countryAt(new Location(lats[i], lons[i]));
+    }
+
+    /**
+     * @return a magnitude between the minimum and the maximum, with the frequency of each falling
+     * tenfold per unit of magnitude
+     */
+    private double gutenbergRichter(double max) {
+        double range = 1 - Math.pow(10, -GUTENBERG_RICHTER_B * (max - MIN_MAGNITUDE));
+        return MIN_MAGNITUDE - Math.log10(1 - random.nextDouble() * range) / GUTENBERG_RICHTER_B;
+    }
+
+    // most quakes are shallow crustal ones, some are in subducting slabs down to 700 km
+    private double backgroundDepth() {
+        double kind = random.nextDouble();
+        if (kind < 0.75) {
+            return Math.min(70, -15 * Math.log(1 - random.nextDouble()));
+        } else if (kind < 0.95) {
+            return 70 + random.nextDouble() * 230;
+        }
+        return 300 + random.nextDouble() * 400;
+    }
+
+    // the modified Omori law, with the rate of aftershocks falling as (c + t)^-p, up to the given delay
+    private double omoriDelayDays(double maxDays) {
+        double maxFraction = 1 - Math.pow(OMORI_C_DAYS / (OMORI_C_DAYS + maxDays), OMORI_P - 1);
+        return OMORI_C_DAYS * (Math.pow(1 - random.nextDouble() * maxFraction, -1 / (OMORI_P - 1)) - 1);
+    }
+
+    private static float roundedDepth(double depthKm) {
+        return Math.round(depthKm * 100) / 100f;
+    }
+
+    private String title(int i) {
+        return "M " + roundedMagnitude(i) + " - " + (countries[i] != null ? countries[i] : "open ocean");
+    }
+
+    private String roundedMagnitude(int i) {
+        int tenths = Math.min(99, Math.round(magnitudes[i] * 10));
+        return tenths / 10 + "." + tenths % 10;
+    }
+
+    private static String id(int i) {
+        String digits = Integer.toString(i);
+        return "sy" + "00000000".substring(Math.min(8, digits.length())) + digits;
+    }
+
+    private static String age(long ageMillis) {
+        if (ageMillis < DAY_MILLIS / 24) {
+            return "Past Hour";
+        } else if (ageMillis < DAY_MILLIS) {
+            return "Past Day";
+        } else if (ageMillis < 7 * DAY_MILLIS) {
+            return "Past Week";
+        }
+        return "Past Month";
+    }
+
+    private static void appendXml(StringBuilder out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '&') {
+                out.append("&amp;");
+            } else if (c == '<') {
+                out.append("&lt;");
+            } else if (c == '>') {
+                out.append("&gt;");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private static void appendJson(StringBuilder out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+    }
+
+    /**
+     * A land polygon with its bounding box and approximate area, for placing quakes on land.
+     */
+    private static class LandPolygon {
+
+        private final AbstractShapeMarker shape;
+        private float minLat = Float.MAX_VALUE;
+        private float maxLat = -Float.MAX_VALUE;
+        private float minLon = Float.MAX_VALUE;
+        private float maxLon = -Float.MAX_VALUE;
+        private final double area;
+
+        LandPolygon(AbstractShapeMarker shape) {
+            this.shape = shape;
+            List<Location> vertices = shape.getLocations();
+            double twiceArea = 0;
+            for (int i = 0; i < vertices.size(); i++) {
+                Location vertex = vertices.get(i);
+                Location next = vertices.get((i + 1) % vertices.size());
+                minLat = Math.min(minLat, vertex.getLat());
+                maxLat = Math.max(maxLat, vertex.getLat());
+                minLon = Math.min(minLon, vertex.getLon());
+                maxLon = Math.max(maxLon, vertex.getLon());
+                twiceArea += vertex.getLon() * next.getLat() - next.getLon() * vertex.getLat();
+            }
+            // in square degrees, shrunk by the narrowing of longitude towards the poles
+            area = Math.abs(twiceArea) / 2 * Math.cos(Math.toRadians((minLat + maxLat) / 2));
+        }
+    }
+}
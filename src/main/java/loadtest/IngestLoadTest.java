@@ -0,0 +1,145 @@
+package loadtest;
+
+import de.fhpotsdam.unfolding.data.PointFeature;
+import markers.EarthquakeMarker;
+import metrics.LatencyHistogram;
+import spatial.CountryClassifier;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a feed through the map's ingest path, ParseFeed, land/ocean classification and marker
+ * construction, and reports throughput, latency percentiles and allocation:
+ *
+ * <pre>
+ *   java loadtest.IngestLoadTest quakes.atom [--rate=events per second] [--runs=5] [--warmup=2]
+ *       [--countries=data/countries.geo.json]
+ * </pre>
+ *
+ * ParseFeed reads a whole feed at once, so parsing is measured per feed. Classification and marker
+ * construction are measured per quake, offered at the given rate, or as fast as they are taken
+ * without one. Each latency runs from when the quake was due rather than from when it was taken,
+ * so a stage falling behind the rate shows as growing latency instead of being hidden by the wait.
+ *
+ * @author abrar hayat
+ */
+
+public class IngestLoadTest {
+
+    private final File feed;
+    private final CountryClassifier classifier;
+    private final double rate;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public IngestLoadTest(File feed, CountryClassifier classifier, double rate) {
+        this.feed = feed;
+        this.classifier = classifier;
+        this.rate = rate;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = new Options(args);
+        if (options.getArguments().size() != 1) {
+            System.err.println("Usage: IngestLoadTest <feed file> [--rate=events per second] [--runs=N]"
+                    + " [--warmup=N] [--countries=file]");
+            System.exit(2);
+        }
+        File countryFile = new File(options.getString("countries", FeedFiles.DEFAULT_COUNTRIES));
+        IngestLoadTest test = new IngestLoadTest(new File(options.getArguments().get(0)),
+                new CountryClassifier(FeedFiles.loadCountries(countryFile)), options.getDouble("rate", 0));
+        int warmup = (int) options.getLong("warmup", 2);
+        int runs = (int) options.getLong("runs", 5);
+        System.out.println("Replaying " + test.feed + (test.rate > 0 ? " at " + (long) test.rate + " quakes/s" : "")
+                + ", " + warmup + " warmup and " + runs + " measured runs");
+        for (int run = 0; run < warmup + runs; run++) {
+            test.run(run < warmup ? "warmup " + (run + 1) : "run " + (run - warmup + 1));
+        }
+    }
+
+    /**
+     * Parses the feed and replays its quakes once, printing the results under the given label.
+     */
+    public void run(String label) throws IOException {
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        List<PointFeature> quakes = FeedFiles.parseFeed(feed);
+        long parseNanos = System.nanoTime() - start;
+        long parseBytes = allocatedBytes() - allocated;
+        System.out.println(String.format("%-9s parse    %,9d quakes in %,7d ms  %,10.0f quakes/s  %s",
+                label, quakes.size(), parseNanos / 1000000, quakes.size() * 1e9 / parseNanos,
+                describeAllocation(parseBytes, quakes.size())));
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        List<EarthquakeMarker> markers = new ArrayList<EarthquakeMarker>(quakes.size());
+        allocated = allocatedBytes();
+        start = System.nanoTime();
+        double intervalNanos = rate > 0 ? 1e9 / rate : 0;
+        for (int i = 0; i < quakes.size(); i++) {
+            long due = System.nanoTime();
+            if (rate > 0) {
+                due = start + (long) (i * intervalNanos);
+                for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            // markers stay reachable, as on the map, so the collector sees the same live set
+            markers.add(classifier.createMarker(quakes.get(i)));
+            latencies.recordNanos(System.nanoTime() - due);
+        }
+        long ingestNanos = System.nanoTime() - start;
+        long ingestBytes = allocatedBytes() - allocated;
+        System.out.println(String.format("%-9s classify %,9d quakes in %,7d ms  %,10.0f quakes/s  %s",
+                label, markers.size(), ingestNanos / 1000000, markers.size() * 1e9 / ingestNanos,
+                describeAllocation(ingestBytes, markers.size())));
+        System.out.println(String.format("%-9s latency  p50 %.3f ms  p90 %.3f ms  p99 %.3f ms  p99.9 %.3f ms"
+                        + "  max %.3f ms  gc %d collections, %d ms",
+                label, latencies.getPercentileMillis(50), latencies.getPercentileMillis(90),
+                latencies.getPercentileMillis(99), latencies.getPercentileMillis(99.9), latencies.getMaxMillis(),
+                gcCount() - gcCount, gcMillis() - gcMillis));
+    }
+
+    private static String describeAllocation(long bytes, int quakes) {
+        if (bytes < 0) {
+            return "allocation not measurable on this JVM";
+        }
+        return String.format("%,d MB allocated, %,d bytes/quake", bytes / (1024 * 1024), bytes / Math.max(1, quakes));
+    }
+
+    /**
+     * @return the bytes allocated by this thread so far, or -1 if the JVM does not count them
+     */
+    private long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+            if (counting.isThreadAllocatedMemorySupported() && counting.isThreadAllocatedMemoryEnabled()) {
+                return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+}
@@ -5,21 +5,60 @@ import de.fhpotsdam.unfolding.data.Feature;
 import de.fhpotsdam.unfolding.data.GeoJSONReader;
 import de.fhpotsdam.unfolding.data.PointFeature;
 import de.fhpotsdam.unfolding.geo.Location;
-import de.fhpotsdam.unfolding.marker.AbstractShapeMarker;
 import de.fhpotsdam.unfolding.marker.Marker;
-import de.fhpotsdam.unfolding.marker.MultiMarker;
+import de.fhpotsdam.unfolding.marker.MarkerManager;
 import de.fhpotsdam.unfolding.providers.MBTilesMapProvider;
 import de.fhpotsdam.unfolding.providers.Microsoft;
+import cluster.QuakeSequence;
+import cluster.SequenceDetector;
 import de.fhpotsdam.unfolding.utils.MapUtils;
+import export.MapExporter;
+import export.MercatorView;
+import filter.FilteredMarkerManager;
+import filter.MarkerFilterEngine;
+import filter.QuakeFilters;
+import layers.ChoroplethLayer;
+import layers.HeatmapLayer;
+import layers.MapLayer;
+import layers.ThreatCircleLayer;
 import markers.*;
+import metrics.AsyncLogging;
+import metrics.MapMetrics;
+import metrics.MetricsOverlay;
+import org.apache.log4j.Logger;
 import parsing.ParseFeed;
 import processing.core.PApplet;
+import processing.core.PGraphics;
 import processing.core.PShape;
+import retention.QuakeRetention;
+import server.QuakeDataServer;
+import spatial.CityIndex;
+import spatial.CountryClassifier;
+import stats.RollingStats;
+import stats.WindowStats;
+import tiles.CachingMapProvider;
+import tiles.PooledMBTilesMapProvider;
+import timeline.QuakeTimeline;
+import timeline.TimelineControl;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * EarthquakeCityMap
@@ -33,8 +72,37 @@ import java.util.List;
 public class EarthquakeCityMap extends PApplet {
 
     private static final long serialVersionUID = 1L;
+    private static final Logger LOG = Logger.getLogger(EarthquakeCityMap.class);
 
-    private static final boolean offline = false;
+    // -Dearthquakemap.offline=true reads the bundled mbtiles and a saved feed instead of the network
+    private static final String OFFLINE_PROPERTY = "earthquakemap.offline";
+    private static final boolean offline = Boolean.getBoolean(OFFLINE_PROPERTY);
+    private static final long TILE_MEMORY_BUDGET_BYTES = 64L * 1024 * 1024;
+    private static final int MBTILES_READERS = 2;
+    private static final int NEAREST_PLACES = 3;
+    private static final int MBTILES_MAX_ZOOM = 3;
+    private static final int ONLINE_MAX_ZOOM = 19;
+    // exports are this many times the size of the map on screen
+    private static final int EXPORT_SCALE = 4;
+    private static final String EXPORT_FILE = "earthquake-map-export.png";
+    private static final int MIN_SEQUENCE_SIZE = 2;
+    private static final int SEQUENCES_TO_PRINT = 10;
+    // the data server is only started when this system property gives it a port
+    private static final String SERVER_PORT_PROPERTY = "earthquakemap.server.port";
+    // replaces the feed, e.g. with one written by loadtest.FeedGenerator
+    private static final String FEED_PROPERTY = "earthquakemap.feed";
+    private static final int ACTIVE_REGIONS_SHOWN = 12;
+    private static final long ACTIVITY_REFRESH_MILLIS = 1000;
+    // quakes older than this many days, and the oldest beyond this many, are dropped
+    private static final String RETENTION_DAYS_PROPERTY = "earthquakemap.retention.days";
+    private static final String RETENTION_MAX_PROPERTY = "earthquakemap.retention.max";
+    private static final int DEFAULT_RETENTION_DAYS = 30;
+    private static final int DEFAULT_RETENTION_MAX = 20000;
+    // the live feed is read again this often, 0 turns refreshing off
+    private static final String REFRESH_MINUTES_PROPERTY = "earthquakemap.refresh.minutes";
+    private static final int DEFAULT_REFRESH_MINUTES = 5;
+    private static final long EVICTION_CHECK_MILLIS = 60 * 1000L;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
 
     private String earthquakesURL = "https://earthquake.usgs.gov/earthquakes/feed/v1.0/summary/2.5_week.atom";
 
@@ -42,11 +110,49 @@ public class EarthquakeCityMap extends PApplet {
     private String countryFile = "countries.geo.json";
 
     private UnfoldingMap map;
+    private CachingMapProvider tileProvider;
+    private PooledMBTilesMapProvider mbTilesProvider;
+    private int maxTileZoom;
+    private volatile boolean exporting;
     private List<Marker> cityMarkers;
     private List<Marker> quakeMarkers;
     private List<Marker> countryMarkers;
+    private CountryClassifier countryClassifier;
+    private CityIndex cityIndex;
+    private List<CityIndex.Neighbour> clickedQuakeNearestPlaces;
+    private double clickedQuakeThreatenedPopulation;
+    private QuakeSequence clickedQuakeSequence;
+    private SequenceDetector sequenceDetector;
+    private QuakeSequence selectedSequence;
+    private int selectedSequenceIndex = -1;
     private CommonMarker lastSelected;
     private CommonMarker lastClicked;
+    private MarkerFilterEngine quakeFilter;
+    private MarkerFilterEngine cityFilter;
+    private QuakeFilters quakeFilters;
+    private final BitSet selectedQuakes = new BitSet();
+    private final BitSet selectedCities = new BitSet();
+    private final List<CityMarker> oceanThreatenedCities = new ArrayList<CityMarker>();
+    private HeatmapLayer heatmapLayer;
+    private ThreatCircleLayer threatCircleLayer;
+    private ChoroplethLayer choroplethLayer;
+    private QuakeTimeline timeline;
+    private TimelineControl timelineControl;
+    private final MapMetrics metrics = new MapMetrics();
+    private MetricsOverlay metricsOverlay;
+    private final RollingStats rollingStats = new RollingStats();
+    private RollingStats.Window activityWindow = RollingStats.Window.DAY;
+    private List<String> activityLines = new ArrayList<String>();
+    private long activityUpdatedAt;
+    private QuakeDataServer dataServer;
+    private QuakeRetention retention;
+    // the quakes by feed id, so that refreshed feeds only add the quakes not seen before
+    private final Map<String, EarthquakeMarker> quakesById = new HashMap<String, EarthquakeMarker>();
+    // feeds read by the refresh thread, waiting for the next frame to take them in
+    private final Queue<List<PointFeature>> refreshedFeeds = new ConcurrentLinkedQueue<List<PointFeature>>();
+    private long evictionCheckedAt;
+    // the catalog time the quake ages were last brought up to
+    private long agedAt;
     private int numbersOfQuakeToPrint = 20;
 
     private int KEY_X_BASE = 25;
@@ -58,46 +164,461 @@ public class EarthquakeCityMap extends PApplet {
     private final int MAP_HEIGHT = 720;
 
     public void setup() {
+        long setupStart = System.nanoTime();
+        AsyncLogging.configure();
+        metrics.register();
         size(WINDOW_WIDTH, WINDOW_HEIGHT, OPENGL);
         if (offline) {
             String mbTilesString = "blankLight-1-3.mbtiles";
-            map = new UnfoldingMap(this, 400, KEY_Y_BASE, MAP_WIDTH, MAP_HEIGHT, new MBTilesMapProvider(mbTilesString));
+            MBTilesMapProvider offlineProvider;
+            try {
+                mbTilesProvider = new PooledMBTilesMapProvider(mbTilesString, MBTILES_READERS);
+                offlineProvider = mbTilesProvider;
+            } catch (SQLException e) {
+                LOG.warn("Falling back to unpooled MBTiles reading: " + e.getMessage());
+                offlineProvider = new MBTilesMapProvider(mbTilesString);
+            }
+            // the mbtiles file is already local, so only decoded tiles are cached
+            tileProvider = new CachingMapProvider(offlineProvider, TILE_MEMORY_BUDGET_BYTES, null);
+            maxTileZoom = MBTILES_MAX_ZOOM;
             earthquakesURL = "2.5_week.atom";  // The same feed, but saved August 7, 2015
         } else {
-            map = new UnfoldingMap(this, 400, KEY_Y_BASE, MAP_WIDTH, MAP_HEIGHT, new Microsoft.RoadProvider());
+            tileProvider = new CachingMapProvider(new Microsoft.RoadProvider(), TILE_MEMORY_BUDGET_BYTES,
+                    new File(System.getProperty("java.io.tmpdir"), "earthquake-map-tiles"));
+            maxTileZoom = ONLINE_MAX_ZOOM;
         }
+        map = new UnfoldingMap(this, 400, KEY_Y_BASE, MAP_WIDTH, MAP_HEIGHT, tileProvider);
         MapUtils.createDefaultEventDispatcher(this, map);
 
         List<Feature> countries = GeoJSONReader.loadData(this, countryFile);
         countryMarkers = MapUtils.createSimpleMarkers(countries);
+        countryClassifier = new CountryClassifier(countryMarkers);
         List<Feature> cities = GeoJSONReader.loadData(this, cityFile);
         cityMarkers = new ArrayList<Marker>();
+        List<CityMarker> cityList = new ArrayList<CityMarker>();
         for (Feature city : cities) {
-            cityMarkers.add(new CityMarker(city));
+            CityMarker cityMarker = new CityMarker(city);
+            cityMarkers.add(cityMarker);
+            cityList.add(cityMarker);
         }
-        List<PointFeature> earthquakes = ParseFeed.parseEarthquake(this, earthquakesURL);
+        cityIndex = new CityIndex(cityList);
+        long parseStart = System.nanoTime();
+        earthquakesURL = System.getProperty(FEED_PROPERTY, earthquakesURL);
+        List<PointFeature> earthquakes = ParseFeed.parseEarthquakeFeed(this, earthquakesURL);
+        metrics.recordFeedParse(System.nanoTime() - parseStart, earthquakes.size());
         quakeMarkers = new ArrayList<Marker>();
+        retention = new QuakeRetention(Integer.getInteger(RETENTION_DAYS_PROPERTY, DEFAULT_RETENTION_DAYS) * DAY_MILLIS,
+                Integer.getInteger(RETENTION_MAX_PROPERTY, DEFAULT_RETENTION_MAX));
 
-        for (PointFeature feature : earthquakes) {
-            if (isLand(feature)) {
-                quakeMarkers.add(new LandQuakeMarker(feature));
-            } else {
-                quakeMarkers.add(new OceanQuakeMarker(feature));
-            }
-        }
-        map.addMarkers(quakeMarkers);
-        map.addMarkers(cityMarkers);
+        long classificationStart = System.nanoTime();
+        long latest = latestTime(earthquakes);
+        agedAt = offline && latest != 0 ? latest : System.currentTimeMillis();
+        ingest(earthquakes, agedAt);
+        metrics.recordClassification(System.nanoTime() - classificationStart, quakeMarkers.size());
+        evictExpired();
+        metrics.setMarkerCounts(quakeMarkers.size(), cityMarkers.size());
+        createLayers();
+        createFilters();
         map.zoomLevel(0);
+        createTimeline();
+        createSequences();
+        startDataServer();
+        startFeedRefresh();
+        metricsOverlay = new MetricsOverlay(metrics, 400 + MAP_WIDTH - 300, KEY_Y_BASE + 10);
         printQuakes();
         sortAndPrint(numbersOfQuakeToPrint);
+        printSequences(SEQUENCES_TO_PRINT);
+        metrics.recordSetup(System.nanoTime() - setupStart);
     }
 
 
     public void draw() {
+        long frameStart = System.nanoTime();
         background(255);
+        updateCatalog();
+        timelineControl.update();
         map.draw();
         addKey();
         drawClickedCityInfo();
+        drawClickedQuakeInfo();
+        drawFilterPanel();
+        timelineControl.draw(g);
+        drawStatusLines();
+        drawActivityPanel();
+        metrics.setVisibleCounts(quakeFilter.getVisible().cardinality(), cityFilter.getVisible().cardinality());
+        metricsOverlay.draw(g);
+        metrics.recordFrame(System.nanoTime() - frameStart);
+        metrics.logSummaryIfDue();
+    }
+
+    @Override
+    public void dispose() {
+        if (dataServer != null) {
+            dataServer.stop();
+            dataServer = null;
+        }
+        if (mbTilesProvider != null) {
+            mbTilesProvider.getSource().close();
+            mbTilesProvider = null;
+        }
+        super.dispose();
+    }
+
+    private void drawStatusLines() {
+        fill(0);
+        textSize(TEXT_SIZE);
+        textAlign(LEFT, CENTER);
+        text(tileProvider.getStats(), 400, KEY_Y_BASE + MAP_HEIGHT + 100);
+        String keys = "H: heatmap   I: metrics   E: export" + (exporting ? " (exporting...)" : "")
+                + "   S: next sequence   T: all threat circles   P: countries   O: activity window"
+                + (choroplethLayer.isVisible() ? " (" + choroplethLayer.getMeasure() + ")" : "");
+        text(keys, 400, KEY_Y_BASE + MAP_HEIGHT + 120);
+        if (selectedSequence != null) {
+            text("Sequence " + (selectedSequenceIndex + 1) + ": " + selectedSequence.describe(), 400,
+                    KEY_Y_BASE + MAP_HEIGHT + 140);
+        }
+    }
+
+    // the most active regions over the rolling window, to the right of the map
+    private void drawActivityPanel() {
+        if (millis() - activityUpdatedAt >= ACTIVITY_REFRESH_MILLIS || activityLines.isEmpty()) {
+            updateActivityLines();
+        }
+        float x = 400 + MAP_WIDTH + 20;
+        float y = KEY_Y_BASE + 10;
+        fill(0);
+        textSize(TEXT_SIZE);
+        textAlign(LEFT, CENTER);
+        for (String line : activityLines) {
+            text(line, x, y);
+            y += 18;
+        }
+    }
+
+    private void updateActivityLines() {
+        long now = catalogNow();
+        List<String> lines = new ArrayList<String>();
+        lines.add("Activity, " + activityWindow + " (O):");
+        WindowStats total = rollingStats.get(RollingStats.ALL_REGIONS, activityWindow, now);
+        lines.add("  " + total.describe());
+        for (WindowStats region : rollingStats.getMostActive(activityWindow, now, ACTIVE_REGIONS_SHOWN)) {
+            lines.add(region.getRegion());
+            lines.add("  " + region.describe());
+        }
+        activityLines = lines;
+        activityUpdatedAt = millis();
+    }
+
+    // a saved feed is shown as of its latest quake, a live one as of now
+    private long catalogNow() {
+        return offline ? rollingStats.getLatestTime() : System.currentTimeMillis();
+    }
+
+    /**
+     * Classifies the quakes of a feed that the map does not have yet and that the retention policy
+     * keeps, adding them to the quake list, the rolling statistics and the retention queue.
+     *
+     * @return the added quakes, still to be added to the filters, timeline and layers
+     */
+    private List<EarthquakeMarker> ingest(List<PointFeature> features, long now) {
+        List<EarthquakeMarker> added = new ArrayList<EarthquakeMarker>();
+        for (PointFeature feature : features) {
+            String key = feedKey(feature.getId(), (String) feature.getProperty("title"), feature.getLocation());
+            long time = timeOf(feature);
+            if (quakesById.containsKey(key) || (time != 0 && !retention.wouldRetain(time, now))) {
+                continue;
+            }
+            if (time == 0) {
+                // a quake without an event time is placed at its arrival, on the timeline as in retention
+                time = now;
+                feature.putProperty("time", time);
+            }
+            EarthquakeMarker quake = countryClassifier.createMarker(feature);
+            quake.updateAge(now);
+            quakeMarkers.add(quake);
+            rollingStats.add(quake);
+            retention.add(quake, time);
+            quakesById.put(key, quake);
+            added.add(quake);
+        }
+        return added;
+    }
+
+    /**
+     * Drops the quakes the retention policy no longer keeps from the quake list and the feed ids.
+     *
+     * @return the dropped quakes, still to be removed from the filters, timeline and layers
+     */
+    private List<EarthquakeMarker> evictExpired() {
+        List<EarthquakeMarker> evicted = retention.evict(catalogNow());
+        if (!evicted.isEmpty()) {
+            quakeMarkers.removeAll(new HashSet<EarthquakeMarker>(evicted));
+            for (EarthquakeMarker quake : evicted) {
+                quakesById.remove(feedKey(quake.getId(), quake.getTitle(), quake.getLocation()));
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Takes in a refreshed feed if one has arrived, and drops expired quakes from everything that
+     * refers to them. Expiry is checked once a minute, and costs nothing while no quake expires.
+     */
+    private void updateCatalog() {
+        List<PointFeature> features = refreshedFeeds.poll();
+        if (features == null && millis() - evictionCheckedAt < EVICTION_CHECK_MILLIS) {
+            return;
+        }
+        evictionCheckedAt = millis();
+        long start = System.nanoTime();
+        long previousLatest = timeline.getLatestTime();
+        List<EarthquakeMarker> added = features == null ? Collections.<EarthquakeMarker>emptyList()
+                : ingest(features, catalogNow());
+        for (EarthquakeMarker quake : added) {
+            // the filters first, since entering the time window sets the bit of the quake's filter slot
+            quakeFilters.add(quake);
+            timeline.add(quake);
+            heatmapLayer.add(quake);
+            sequenceDetector.add(quake);
+        }
+        boolean aged = ageQuakes(catalogNow());
+        List<EarthquakeMarker> evicted = evictExpired();
+        if (added.isEmpty() && evicted.isEmpty()) {
+            if (aged) {
+                publishCatalog();
+            }
+            return;
+        }
+        removeQuakes(evicted);
+        timelineControl.catalogChanged(previousLatest);
+        choroplethLayer.invalidate();
+        metrics.setMarkerCounts(quakeMarkers.size(), cityMarkers.size());
+        metrics.recordCatalogUpdate(System.nanoTime() - start, added.size(), evicted.size());
+        publishCatalog();
+    }
+
+    /**
+     * Brings the age buckets up to the given catalog time. Only the quakes that passed an hour, a
+     * day or a week old since the last call change bucket, and the timeline finds them by time.
+     *
+     * @return true if any quake changed bucket
+     */
+    private boolean ageQuakes(long now) {
+        boolean aged = false;
+        if (now > agedAt) {
+            for (int age = EarthquakeMarker.PAST_HOUR; age < EarthquakeMarker.PAST_MONTH; age++) {
+                long limit = EarthquakeMarker.ageLimitMillis(age);
+                for (EarthquakeMarker quake : timeline.getQuakes(agedAt - limit, now - limit)) {
+                    int previous = quake.getAgeInt();
+                    if (quake.updateAge(now)) {
+                        quakeFilters.updateAge(quake, previous);
+                        aged = true;
+                    }
+                }
+            }
+            agedAt = now;
+        }
+        return aged;
+    }
+
+    // removes evicted quakes from the filters, timeline, layers, sequences and the selection
+    private void removeQuakes(List<EarthquakeMarker> evicted) {
+        if (evicted.isEmpty()) {
+            return;
+        }
+        Set<EarthquakeMarker> removed = new HashSet<EarthquakeMarker>(evicted);
+        timeline.removeAll(removed);
+        sequenceDetector.removeAll(removed);
+        for (EarthquakeMarker quake : evicted) {
+            selectedQuakes.clear(quake.getFilterSlot());
+            quakeFilters.remove(quake);
+            heatmapLayer.remove(quake);
+            threatCircleLayer.remove(quake);
+        }
+        if (removed.contains(lastSelected)) {
+            lastSelected.setSelected(false);
+            lastSelected = null;
+        }
+        if (removed.contains(lastClicked)) {
+            lastClicked.setClicked(false);
+            lastClicked = null;
+            clearSelection();
+        } else if (selectedSequence != null) {
+            // the sequences were linked again, so the selected one may have changed or gone
+            clearSelection();
+        } else if (lastClicked instanceof EarthquakeMarker) {
+            clickedQuakeSequence = sequenceDetector.getSequence((EarthquakeMarker) lastClicked);
+        }
+    }
+
+    // the feed id of a quake, or its title and place for feeds without ids
+    private static String feedKey(String id, String title, Location location) {
+        return id != null ? id : title + "@" + location.getLat() + "," + location.getLon();
+    }
+
+    private static long timeOf(PointFeature feature) {
+        Object time = feature.getProperty("time");
+        return time != null ? ((Number) time).longValue() : 0L;
+    }
+
+    // the latest event time of a feed, or 0 if it has none
+    private static long latestTime(List<PointFeature> features) {
+        long latest = 0L;
+        for (PointFeature feature : features) {
+            latest = Math.max(latest, timeOf(feature));
+        }
+        return latest;
+    }
+
+    /**
+     * Reads the live feed again every few minutes on a background thread and queues it for
+     * {@link #updateCatalog()}, which the next frame runs.
+     */
+    private void startFeedRefresh() {
+        int minutes = Integer.getInteger(REFRESH_MINUTES_PROPERTY, DEFAULT_REFRESH_MINUTES);
+        if (offline || minutes <= 0) {
+            return;
+        }
+        final long intervalMillis = minutes * 60 * 1000L;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(intervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    try {
+                        long start = System.nanoTime();
+                        List<PointFeature> features = ParseFeed.parseEarthquakeFeed(EarthquakeCityMap.this,
+                                earthquakesURL);
+                        metrics.recordFeedParse(System.nanoTime() - start, features.size());
+                        refreshedFeeds.add(features);
+                    } catch (RuntimeException e) {
+                        LOG.warn("Could not refresh the quake feed from " + earthquakesURL, e);
+                    }
+                }
+            }
+        }, "feed-refresh");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void cycleActivityWindow() {
+        RollingStats.Window[] windows = RollingStats.Window.values();
+        activityWindow = windows[(activityWindow.ordinal() + 1) % windows.length];
+        updateActivityLines();
+    }
+
+    private void createLayers() {
+        heatmapLayer = new HeatmapLayer();
+        List<EarthquakeMarker> quakes = new ArrayList<EarthquakeMarker>();
+        for (Marker quake : quakeMarkers) {
+            quakes.add((EarthquakeMarker) quake);
+        }
+        heatmapLayer.addAll(quakes);
+        addLayer(heatmapLayer);
+    }
+
+    // layers added before the filtered marker managers are drawn underneath the markers
+    private void addLayer(MapLayer layer) {
+        MarkerManager<Marker> manager = new MarkerManager<Marker>();
+        manager.addMarker(layer);
+        manager.setMap(map);
+        map.addMarkerManager(manager);
+    }
+
+    private void createFilters() {
+        quakeFilter = new MarkerFilterEngine();
+        quakeFilters = new QuakeFilters(quakeFilter);
+        for (Marker quake : quakeMarkers) {
+            quakeFilters.add((EarthquakeMarker) quake);
+        }
+        cityFilter = new MarkerFilterEngine();
+        for (Marker city : cityMarkers) {
+            cityFilter.add((CommonMarker) city);
+        }
+        // these layers show the quakes the filters let through, so they need the engine first
+        choroplethLayer = new ChoroplethLayer(countryMarkers, quakeFilter);
+        addLayer(choroplethLayer);
+        threatCircleLayer = new ThreatCircleLayer(quakeFilter);
+        addLayer(threatCircleLayer);
+        addFilteredMarkerManager(quakeFilter);
+        addFilteredMarkerManager(cityFilter);
+    }
+
+    private void addFilteredMarkerManager(MarkerFilterEngine engine) {
+        FilteredMarkerManager manager = new FilteredMarkerManager(engine);
+        manager.setMap(map);
+        map.addMarkerManager(manager);
+    }
+
+    private void createTimeline() {
+        timeline = new QuakeTimeline(new QuakeTimeline.WindowListener() {
+            @Override
+            public void entered(EarthquakeMarker quake) {
+                quakeFilters.setInTimeWindow(quake, true);
+            }
+
+            @Override
+            public void left(EarthquakeMarker quake) {
+                quakeFilters.setInTimeWindow(quake, false);
+                if (quake == lastSelected) {
+                    lastSelected.setSelected(false);
+                    lastSelected = null;
+                }
+            }
+        });
+        for (Marker quake : quakeMarkers) {
+            timeline.add((EarthquakeMarker) quake);
+        }
+        timelineControl = new TimelineControl(timeline, 400, KEY_Y_BASE + MAP_HEIGHT + 40, MAP_WIDTH);
+    }
+
+    private void createSequences() {
+        sequenceDetector = new SequenceDetector();
+        for (Marker quake : quakeMarkers) {
+            sequenceDetector.add((EarthquakeMarker) quake);
+        }
+    }
+
+    private void startDataServer() {
+        Integer port = Integer.getInteger(SERVER_PORT_PROPERTY);
+        if (port == null) {
+            return;
+        }
+        try {
+            dataServer = new QuakeDataServer(port);
+            dataServer.start();
+            publishCatalog();
+        } catch (IOException e) {
+            LOG.error("Could not start the quake data server on port " + port, e);
+            dataServer = null;
+        }
+    }
+
+    /**
+     * Hands the current quakes to the data server, if it is running.
+     */
+    private void publishCatalog() {
+        if (dataServer == null) {
+            return;
+        }
+        Collection<EarthquakeMarker> quakes = new ArrayList<EarthquakeMarker>(quakeMarkers.size());
+        for (Marker quake : quakeMarkers) {
+            quakes.add((EarthquakeMarker) quake);
+        }
+        dataServer.publish(quakes);
+    }
+
+    private void printSequences(int numToPrint) {
+        List<QuakeSequence> sequences = sequenceDetector.getSequences(MIN_SEQUENCE_SIZE);
+        System.out.println("\n" + String.format("%d quake sequences were found, the largest %s are: ",
+                sequences.size(), Math.min(numToPrint, sequences.size())));
+        for (int index = 0; index < Math.min(numToPrint, sequences.size()); index++) {
+            System.out.println(sequences.get(index).describe());
+        }
     }
 
     private void sortAndPrint(int numToPrint) {
@@ -109,172 +630,330 @@ public class EarthquakeCityMap extends PApplet {
         System.out.println("\n" + String.format("The top %s Earthquakes(depending on availability) are shown below: ",
                 numToPrint));
         for (int index = 0; index < Math.min(numToPrint + 1, quakeMarkers.size()); index++) {
-            System.out.println(allQuakeMarkers.get(index).getTitle());
+            EarthquakeMarker quake = allQuakeMarkers.get(index);
+            System.out.println(quake.getTitle() + describeImpact(quake));
+        }
+    }
+
+    // the nearest city and the population of the cities within the threat circle
+    private String describeImpact(EarthquakeMarker quake) {
+        List<CityIndex.Neighbour> nearest = cityIndex.nearest(quake.getLocation(), 1);
+        if (nearest.isEmpty()) {
+            return "";
         }
+        CityIndex.Neighbour city = nearest.get(0);
+        return String.format(" - nearest city: %s (%.0f km), threatened population: %.2f million",
+                city.getCity().getCity(), city.getDistanceKm(),
+                cityIndex.populationWithin(quake.getLocation(), quake.threatCircle()));
     }
 
     @Override
     public void mouseMoved() {
+        long start = System.nanoTime();
         if (lastSelected != null) {
             lastSelected.setSelected(false);
             lastSelected = null;
 
         }
-        selectMarkerIfHover(quakeMarkers);
-        selectMarkerIfHover(cityMarkers);
+        CommonMarker hovered = findVisibleMarkerAtMouse();
+        if (hovered != null) {
+            hovered.setSelected(true);
+            lastSelected = hovered;
+        }
+        metrics.recordHover(System.nanoTime() - start);
     }
 
-    private void selectMarkerIfHover(List<Marker> markers) {
-        for (Marker currentMarker : markers) {
-            if (currentMarker.isInside(map, mouseX, mouseY) && lastSelected == null) {
-                currentMarker.setSelected(true);
-                lastSelected = (CommonMarker) currentMarker;
-                break;
-            }
+    private CommonMarker findVisibleMarkerAtMouse() {
+        CommonMarker marker = quakeFilter.findHit(map, mouseX, mouseY);
+        if (marker == null) {
+            marker = cityFilter.findHit(map, mouseX, mouseY);
         }
+        return marker;
     }
 
     @Override
-    public void mouseClicked() {
+    public void mousePressed() {
+        timelineControl.mousePressed(mouseX, mouseY);
+    }
+
+    @Override
+    public void mouseDragged() {
+        timelineControl.mouseDragged(mouseX);
+    }
+
+    @Override
+    public void mouseReleased() {
+        timelineControl.mouseReleased();
+    }
+
+    @Override
+    public void keyPressed() {
+        if (key == ' ') {
+            timelineControl.togglePlaying();
+        } else if (key == 'w' || key == 'W') {
+            timelineControl.cycleWindowLength();
+        } else if (key == '+' || key == '=') {
+            quakeFilters.raiseMinMagnitude();
+        } else if (key == '-') {
+            quakeFilters.lowerMinMagnitude();
+        } else if (key >= '1' && key <= '3') {
+            quakeFilters.toggleDepthBand(key - '1');
+        } else if (key == 'a' || key == 'A') {
+            quakeFilters.cycleMaxAge();
+        } else if (key == 'l' || key == 'L') {
+            quakeFilters.cycleLandOcean();
+        } else if (key == 'c' || key == 'C') {
+            toggleCountryFilter();
+        } else if (key == 'r' || key == 'R') {
+            quakeFilters.reset();
+        } else if (key == 'h' || key == 'H') {
+            heatmapLayer.toggleVisible();
+        } else if (key == 'i' || key == 'I') {
+            metricsOverlay.toggleVisible();
+        } else if (key == 'e' || key == 'E') {
+            exportMap();
+        } else if (key == 's' || key == 'S') {
+            selectNextSequence();
+        } else if (key == 't' || key == 'T') {
+            threatCircleLayer.toggleShowAll();
+        } else if (key == 'p' || key == 'P') {
+            choroplethLayer.cycle();
+        } else if (key == 'o' || key == 'O') {
+            cycleActivityWindow();
+        }
+    }
+
+    /**
+     * Exports the current view with the visible markers and the key to a PNG several times the size
+     * of the map, rendering offscreen on background threads so the map stays responsive.
+     */
+    private void exportMap() {
+        if (exporting) {
+            return;
+        }
+        exporting = true;
+        final MapExporter exporter = new MapExporter(this, tileProvider, maxTileZoom);
+        List<CommonMarker> visible = new ArrayList<CommonMarker>();
+        for (MarkerFilterEngine engine : new MarkerFilterEngine[]{quakeFilter, cityFilter}) {
+            BitSet slots = engine.getVisible();
+            for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+                visible.add(engine.getMarker(slot));
+            }
+        }
+        exporter.setMarkers(visible);
+        exporter.setLegend(new MapExporter.Painter() {
+            @Override
+            public void paint(PGraphics pg) {
+                drawKey(pg, 0, 0);
+            }
+        }, 150, 250);
+        double zoom = Math.log(map.getZoom() * EXPORT_SCALE) / Math.log(2);
+        final MercatorView view = new MercatorView(MAP_WIDTH * EXPORT_SCALE, MAP_HEIGHT * EXPORT_SCALE,
+                map.getCenter(), zoom, EXPORT_SCALE);
+        final File file = new File(sketchPath(EXPORT_FILE));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+                    try {
+                        exporter.export(view, out);
+                    } finally {
+                        out.close();
+                    }
+                    LOG.info(String.format("Exported %dx%d map to %s in %.1f s", view.getWidth(), view.getHeight(),
+                            file, (System.nanoTime() - start) / 1e9));
+                } catch (IOException e) {
+                    LOG.error("Could not export the map to " + file, e);
+                } finally {
+                    exporting = false;
+                }
+            }
+        }, "map-export");
+        thread.start();
+    }
+
+    /**
+     * Selects the next sequence, largest first, showing only its quakes. After the last sequence
+     * the selection is cleared.
+     */
+    private void selectNextSequence() {
+        List<QuakeSequence> sequences = sequenceDetector.getSequences(MIN_SEQUENCE_SIZE);
+        int next = selectedSequenceIndex + 1;
         if (lastClicked != null) {
             lastClicked.setClicked(false);
             lastClicked = null;
-            unhideMarkers();
         }
-        setMarkerAsClicked(quakeMarkers);
-        setMarkerAsClicked(cityMarkers);
+        clearSelection();
+        if (next >= sequences.size()) {
+            return;
+        }
+        selectedSequenceIndex = next;
+        selectedSequence = sequences.get(next);
+        selectedQuakes.clear();
+        for (EarthquakeMarker quake : selectedSequence.getQuakes()) {
+            selectedQuakes.set(quake.getFilterSlot());
+        }
+        quakeFilter.setPredicate(MarkerFilterEngine.Predicate.SELECTION, selectedQuakes);
     }
 
-    private void setMarkerAsClicked(List<Marker> markers) {
-        for (Marker currentMarker : markers) {
-            if (currentMarker.isInside(map, mouseX, mouseY) && lastClicked == null) {
-                hideMarkers();
-                CommonMarker marker = (CommonMarker) currentMarker;
-                lastClicked = marker;
-                lastClicked.setClicked(true);
-                lastClicked.setHidden(false);
-                checkIfMarkerIsCityOrEarthQuake(marker);
-            }
+    private void toggleCountryFilter() {
+        String country = null;
+        if (lastClicked instanceof LandQuakeMarker) {
+            country = ((LandQuakeMarker) lastClicked).getCountry();
+        } else if (lastClicked instanceof CityMarker) {
+            country = ((CityMarker) lastClicked).getCountry();
         }
+        quakeFilters.setCountry(country == null || country.equals(quakeFilters.getCountry()) ? null : country);
+    }
+
+    @Override
+    public void mouseClicked() {
+        long start = System.nanoTime();
+        if (lastClicked != null) {
+            lastClicked.setClicked(false);
+            lastClicked = null;
+        }
+        clearSelection();
+        CommonMarker marker = findVisibleMarkerAtMouse();
+        if (marker != null) {
+            lastClicked = marker;
+            lastClicked.setClicked(true);
+            checkIfMarkerIsCityOrEarthQuake(marker);
+            quakeFilter.setPredicate(MarkerFilterEngine.Predicate.SELECTION, selectedQuakes);
+            cityFilter.setPredicate(MarkerFilterEngine.Predicate.SELECTION, selectedCities);
+        }
+        metrics.recordClick(System.nanoTime() - start);
     }
 
     private void checkIfMarkerIsCityOrEarthQuake(CommonMarker marker) {
+        selectedQuakes.clear();
+        selectedCities.clear();
         if (marker instanceof EarthquakeMarker) {
-            System.out.println("EarthQuake Clicked!");
-            for (Marker currentCity : cityMarkers) {
-                System.out.println("Distance: " + marker.getDistanceTo(currentCity.getLocation()));
-                System.out.println("Threat circle radius: " + ((EarthquakeMarker) marker).threatCircle());
-                if (marker.getDistanceTo(currentCity.getLocation())
-                        <= ((EarthquakeMarker) marker).threatCircle()) {
-                    currentCity.setHidden(false);
-                    if (marker instanceof OceanQuakeMarker) {
-                        ((CityMarker) currentCity).setOceanMarkerSelected(true);
-                    }
+            selectedQuakes.set(marker.getFilterSlot());
+            double threatCircle = ((EarthquakeMarker) marker).threatCircle();
+            clickedQuakeThreatenedPopulation = 0;
+            for (CityIndex.Neighbour neighbour : cityIndex.withinRadius(marker.getLocation(), threatCircle)) {
+                CityMarker city = neighbour.getCity();
+                selectedCities.set(city.getFilterSlot());
+                clickedQuakeThreatenedPopulation += city.getPopulation();
+                if (marker instanceof OceanQuakeMarker) {
+                    city.setOceanMarkerSelected(true);
+                    oceanThreatenedCities.add(city);
                 }
             }
+            clickedQuakeNearestPlaces = cityIndex.nearest(marker.getLocation(), NEAREST_PLACES);
+            clickedQuakeSequence = sequenceDetector.getSequence((EarthquakeMarker) marker);
+            threatCircleLayer.setHighlighted((EarthquakeMarker) marker);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Quake clicked, threatened cities: " + selectedCities.cardinality());
+            }
         } else {
-            marker.setClicked(true);
-            System.out.println("City Clicked!");
+            selectedCities.set(marker.getFilterSlot());
             for (Marker currentQuake : quakeMarkers) {
-                System.out.println("Distance: " + marker.getDistanceTo(currentQuake.getLocation()));
-                System.out.println("Threat circle radius: " + ((EarthquakeMarker) currentQuake).threatCircle());
                 if (marker.getDistanceTo(currentQuake.getLocation())
                         <= ((EarthquakeMarker) currentQuake).threatCircle()) {
-                    currentQuake.setHidden(false);
+                    selectedQuakes.set(((CommonMarker) currentQuake).getFilterSlot());
                 }
             }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("City clicked, threatening quakes: " + selectedQuakes.cardinality());
+            }
         }
     }
 
-    private void unhideMarkers() {
-        for (Marker marker : quakeMarkers) {
-            marker.setHidden(false);
-        }
-
-        for (Marker marker : cityMarkers) {
-            marker.setHidden(false);
-            ((CityMarker) marker).setOceanMarkerSelected(false);
+    private void clearSelection() {
+        quakeFilter.clearPredicate(MarkerFilterEngine.Predicate.SELECTION);
+        cityFilter.clearPredicate(MarkerFilterEngine.Predicate.SELECTION);
+        for (CityMarker city : oceanThreatenedCities) {
+            city.setOceanMarkerSelected(false);
         }
+        oceanThreatenedCities.clear();
+        selectedSequence = null;
+        selectedSequenceIndex = -1;
+        threatCircleLayer.setHighlighted(null);
     }
 
-    private void hideMarkers() {
-        System.out.println("Hiding all markers");
-        for (Marker marker : quakeMarkers) {
-            marker.setHidden(true);
+    private void drawFilterPanel() {
+        List<String> lines = quakeFilters.describe();
+        float y = KEY_Y_BASE + 480;
+        fill(0);
+        textSize(TEXT_SIZE);
+        textAlign(LEFT, CENTER);
+        text("Filters (+/- 1 2 3 A L C, R resets):", KEY_X_BASE, y);
+        if (lines.isEmpty()) {
+            lines.add("None");
         }
-
-        for (Marker marker : cityMarkers) {
-            marker.setHidden(true);
+        for (String line : lines) {
+            y += 20;
+            text(line, KEY_X_BASE + 10, y);
         }
     }
 
     private void addKey() {
-        fill(255, 250, 240);
+        drawKey(g, KEY_X_BASE, KEY_Y_BASE);
+    }
 
-        rect(KEY_X_BASE, KEY_Y_BASE, 150, 250);
+    // draws the legend with its top left corner at (x, y), on screen or onto an export tile
+    private void drawKey(PGraphics pg, float x, float y) {
+        pg.fill(255, 250, 240);
 
-        fill(0);
-        textAlign(LEFT, CENTER);
-        textSize(TEXT_SIZE);
-        text("Earthquake Key", KEY_X_BASE + 25, KEY_Y_BASE + 25);
+        pg.rect(x, y, 150, 250);
 
-        fill(150, 30, 30);
-        int tri_xbase = KEY_X_BASE + 35;
-        int tri_ybase = KEY_Y_BASE + 50;
-        triangle(tri_xbase, tri_ybase - CityMarker.TRI_SIZE, tri_xbase - CityMarker.TRI_SIZE,
+        pg.fill(0);
+        pg.textAlign(LEFT, CENTER);
+        pg.textSize(TEXT_SIZE);
+        pg.text("Earthquake Key", x + 25, y + 25);
+
+        pg.fill(150, 30, 30);
+        float tri_xbase = x + 35;
+        float tri_ybase = y + 50;
+        pg.triangle(tri_xbase, tri_ybase - CityMarker.TRI_SIZE, tri_xbase - CityMarker.TRI_SIZE,
                 tri_ybase + CityMarker.TRI_SIZE, tri_xbase + CityMarker.TRI_SIZE,
                 tri_ybase + CityMarker.TRI_SIZE);
 
-        fill(0, 0, 0);
-        textAlign(LEFT, CENTER);
-        text("City Marker", tri_xbase + 15, tri_ybase);
+        pg.fill(0, 0, 0);
+        pg.textAlign(LEFT, CENTER);
+        pg.text("City Marker", tri_xbase + 15, tri_ybase);
 
-        text("Land Quake", KEY_X_BASE + 50, KEY_Y_BASE + 70);
-        text("Ocean Quake", KEY_X_BASE + 50, KEY_Y_BASE + 90);
-        text("Size ~ Magnitude", KEY_X_BASE + 25, KEY_Y_BASE + 110);
+        pg.text("Land Quake", x + 50, y + 70);
+        pg.text("Ocean Quake", x + 50, y + 90);
+        pg.text("Size ~ Magnitude", x + 25, y + 110);
 
-        fill(255, 255, 255);
-        ellipse(KEY_X_BASE + 35,
-                KEY_Y_BASE + 70,
+        pg.fill(255, 255, 255);
+        pg.ellipse(x + 35,
+                y + 70,
                 10,
                 10);
-        rect(KEY_X_BASE + 35 - 5, KEY_Y_BASE + 90 - 5, 10, 10);
+        pg.rect(x + 35 - 5, y + 90 - 5, 10, 10);
 
-        fill(color(255, 255, 0));
-        ellipse(KEY_X_BASE + 35, KEY_Y_BASE + 140, 12, 12);
-        fill(color(0, 0, 255));
-        ellipse(KEY_X_BASE + 35, KEY_Y_BASE + 160, 12, 12);
-        fill(color(255, 0, 0));
-        ellipse(KEY_X_BASE + 35, KEY_Y_BASE + 180, 12, 12);
+        pg.fill(pg.color(255, 255, 0));
+        pg.ellipse(x + 35, y + 140, 12, 12);
+        pg.fill(pg.color(0, 0, 255));
+        pg.ellipse(x + 35, y + 160, 12, 12);
+        pg.fill(pg.color(255, 0, 0));
+        pg.ellipse(x + 35, y + 180, 12, 12);
 
-        textAlign(LEFT, CENTER);
-        fill(0, 0, 0);
-        text("Shallow", KEY_X_BASE + 50, KEY_Y_BASE + 140);
-        text("Intermediate", KEY_X_BASE + 50, KEY_Y_BASE + 160);
-        text("Deep", KEY_X_BASE + 50, KEY_Y_BASE + 180);
+        pg.textAlign(LEFT, CENTER);
+        pg.fill(0, 0, 0);
+        pg.text("Shallow", x + 50, y + 140);
+        pg.text("Intermediate", x + 50, y + 160);
+        pg.text("Deep", x + 50, y + 180);
 
-        text("Past hour", KEY_X_BASE + 50, KEY_Y_BASE + 200);
+        pg.text("Past hour", x + 50, y + 200);
 
-        fill(255, 255, 255);
-        int centerx = KEY_X_BASE + 35;
-        int centery = KEY_Y_BASE + 200;
-        ellipse(centerx, centery, 12, 12);
+        pg.fill(255, 255, 255);
+        float centerx = x + 35;
+        float centery = y + 200;
+        pg.ellipse(centerx, centery, 12, 12);
 
-        strokeWeight(2);
-        line(centerx - 8, centery - 8, centerx + 8, centery + 8);
-        line(centerx - 8, centery + 8, centerx + 8, centery - 8);
+        pg.strokeWeight(2);
+        pg.line(centerx - 8, centery - 8, centerx + 8, centery + 8);
+        pg.line(centerx - 8, centery + 8, centerx + 8, centery - 8);
 
     }
 
-    private boolean isLand(PointFeature earthquake) {
-        for (Marker country : countryMarkers) {
-            if (isInCountry(earthquake, country)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     private void printQuakes() {
         System.out.println("\n" + "The number of earthquakes by country and by ocean are as follows: ");
         int totalWaterQuakes = quakeMarkers.size();
@@ -297,23 +976,6 @@ public class EarthquakeCityMap extends PApplet {
         System.out.println("OCEAN QUAKES: " + totalWaterQuakes);
     }
 
-    private boolean isInCountry(PointFeature earthquake, Marker country) {
-        Location checkLoc = earthquake.getLocation();
-        if (country.getClass() == MultiMarker.class) {
-            for (Marker marker : ((MultiMarker) country).getMarkers()) {
-                if (((AbstractShapeMarker) marker).isInsideByLocation(checkLoc)) {
-                    earthquake.addProperty("country", country.getProperty("name"));
-                    return true;
-                }
-            }
-        } else if (((AbstractShapeMarker) country).isInsideByLocation(checkLoc)) {
-            earthquake.addProperty("country", country.getProperty("name"));
-
-            return true;
-        }
-        return false;
-    }
-
     private void showCityInfo(float x, float y, int numQuakes, float avgMag, String mostRecentEarthQuakeTitle,
                               String cityInfo) {
         PShape popUp = createShape(RECT, 0, 0, max((textWidth(mostRecentEarthQuakeTitle)),
@@ -336,16 +998,39 @@ public class EarthquakeCityMap extends PApplet {
 
     private ArrayList<EarthquakeMarker> getAllNearbyQuakes(CityMarker cityMarker) {
         ArrayList<EarthquakeMarker> allNearbyQuakeMarkers = new ArrayList<>();
-        for (Marker currentQuake : quakeMarkers) {
-            if (cityMarker.getDistanceTo(currentQuake.getLocation())
-                    <= ((EarthquakeMarker) currentQuake).threatCircle()) {
-                currentQuake.setHidden(false);
-                allNearbyQuakeMarkers.add((EarthquakeMarker) currentQuake);
+        BitSet filtered = quakeFilter.getFiltered();
+        for (int slot = filtered.nextSetBit(0); slot >= 0; slot = filtered.nextSetBit(slot + 1)) {
+            EarthquakeMarker currentQuake = (EarthquakeMarker) quakeFilter.getMarker(slot);
+            if (cityMarker.getDistanceTo(currentQuake.getLocation()) <= currentQuake.threatCircle()) {
+                allNearbyQuakeMarkers.add(currentQuake);
             }
         }
         return allNearbyQuakeMarkers;
     }
 
+    private void drawClickedQuakeInfo() {
+        if (!(lastClicked instanceof EarthquakeMarker) || clickedQuakeNearestPlaces == null) {
+            return;
+        }
+        float x = KEY_X_BASE;
+        float y = KEY_Y_BASE + 300;
+        fill(255, 250, 240);
+        rect(x, y, 330, 80 + 20 * clickedQuakeNearestPlaces.size());
+        fill(0);
+        textSize(TEXT_SIZE);
+        textAlign(LEFT, CENTER);
+        text("Threatened Population: " + String.format("%.2f", clickedQuakeThreatenedPopulation) + " Million",
+                x + 15, y + 20);
+        text("Nearest Places: ", x + 15, y + 40);
+        for (int i = 0; i < clickedQuakeNearestPlaces.size(); i++) {
+            CityIndex.Neighbour place = clickedQuakeNearestPlaces.get(i);
+            text(place.getCity().getCity() + ", " + place.getCity().getCountry() + " ("
+                    + Math.round(place.getDistanceKm()) + " km)", x + 25, y + 60 + 20 * i);
+        }
+        int related = clickedQuakeSequence == null ? 0 : clickedQuakeSequence.size() - 1;
+        text("Related Quakes In Sequence: " + related, x + 15, y + 60 + 20 * clickedQuakeNearestPlaces.size());
+    }
+
     private boolean isLastClickedCityMarker() {
         return (lastClicked != null && lastClicked instanceof CityMarker);
     }
@@ -19,14 +19,18 @@ public class CityMarker extends CommonMarker {
     public static int TRI_SIZE = 5;  // The size of the triangle marker
 
     private boolean oceanMarkerSelected = false;
+    // parsed once, as threat queries sum it over many cities
+    private final float population;
 
     public CityMarker(Location location) {
         super(location);
+        population = 0;
     }
 
 
     public CityMarker(Feature city) {
         super(((PointFeature) city).getLocation(), city.getProperties());
+        population = parsePopulation(getStringProperty("population"));
     }
 
     public void drawMarker(PGraphics pg, float x, float y) {
@@ -64,10 +68,35 @@ public class CityMarker extends CommonMarker {
     }
 
     public float getPopulation() {
-        return Float.parseFloat(getStringProperty("population"));
+        return population;
+    }
+
+    private static float parsePopulation(String population) {
+        if (population == null) {
+            return 0;
+        }
+        try {
+            return Float.parseFloat(population.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     public void setOceanMarkerSelected(boolean oceanMarkerSelected) {
         this.oceanMarkerSelected = oceanMarkerSelected;
     }
+
+    @Override
+    public CommonMarker copy() {
+        PointFeature feature = new PointFeature(new Location(getLocation()));
+        // a city made from a bare location has no properties
+        if (getProperties() != null) {
+            feature.setProperties(new java.util.HashMap<String, Object>(getProperties()));
+        }
+        CityMarker copy = new CityMarker(feature);
+        copy.oceanMarkerSelected = oceanMarkerSelected;
+        copy.clicked = clicked;
+        copy.setSelected(isSelected());
+        return copy;
+    }
 }
@@ -14,6 +14,8 @@ import processing.core.PGraphics;
 public abstract class CommonMarker extends SimplePointMarker {
 
     protected boolean clicked = false;
+    // position of this marker in its filter engine
+    private int filterSlot = -1;
 
     public CommonMarker(Location location) {
         super(location);
@@ -31,6 +33,14 @@ public abstract class CommonMarker extends SimplePointMarker {
         clicked = state;
     }
 
+    public int getFilterSlot() {
+        return filterSlot;
+    }
+
+    public void setFilterSlot(int filterSlot) {
+        this.filterSlot = filterSlot;
+    }
+
     public void draw(PGraphics pg, float x, float y) {
         if (!hidden) {
             drawMarker(pg, x, y);
@@ -42,5 +52,11 @@ public abstract class CommonMarker extends SimplePointMarker {
 
     public abstract void drawMarker(PGraphics pg, float x, float y);
 
+    /**
+     * @return a copy of the marker as it looks now, which other threads may draw while the map
+     * changes this one
+     */
+    public abstract CommonMarker copy();
+
     public abstract void showTitle(PGraphics pg, float x, float y);
 }
\ No newline at end of file
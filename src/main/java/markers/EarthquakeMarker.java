@@ -1,6 +1,7 @@
 package markers;
 
 import de.fhpotsdam.unfolding.data.PointFeature;
+import de.fhpotsdam.unfolding.geo.Location;
 import processing.core.PConstants;
 import processing.core.PGraphics;
 
@@ -23,10 +24,19 @@ public abstract class EarthquakeMarker extends CommonMarker implements Comparabl
     public static final float THRESHOLD_INTERMEDIATE = 70;
     public static final float THRESHOLD_DEEP = 300;
 
-    private final int PAST_HOUR = 1;
-    private final int PAST_DAY = 2;
-    private final int PAST_WEEK = 3;
-    private final int PAST_MONTH = 4;
+    public static final int PAST_HOUR = 1;
+    public static final int PAST_DAY = 2;
+    public static final int PAST_WEEK = 3;
+    public static final int PAST_MONTH = 4;
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+    // the ages at which a quake leaves the past hour, day and week
+    private static final long[] AGE_LIMITS_MILLIS = {HOUR_MILLIS, 24 * HOUR_MILLIS, 7 * 24 * HOUR_MILLIS};
+    private static final String[] AGE_NAMES = {"Past Hour", "Past Day", "Past Week", "Past Month"};
+
+    // the event time is fixed per quake and resolved once here, the age bucket grows with the clock
+    private int ageInt;
+    private final long time;
 
     public abstract void drawEarthquake(PGraphics pg, float x, float y);
 
@@ -36,7 +46,11 @@ public abstract class EarthquakeMarker extends CommonMarker implements Comparabl
         float magnitude = Float.parseFloat(properties.get("magnitude").toString());
         properties.put("radius", 2 * magnitude);
         setProperties(properties);
+        setId(feature.getId());
         this.radius = 1.75f * getMagnitude();
+        this.ageInt = ageToInt((String) properties.get("age"));
+        Object timeProperty = properties.get("time");
+        this.time = timeProperty != null ? ((Number) timeProperty).longValue() : 0L;
     }
 
     public int compareTo(EarthquakeMarker otherEarthquakeMarker) {
@@ -49,8 +63,7 @@ public abstract class EarthquakeMarker extends CommonMarker implements Comparabl
         pg.pushStyle();
         colorDetermine(pg);
         drawEarthquake(pg, x, y);
-        String age = getStringProperty("age");
-        if ("Past Hour".equals(age) || "Past Day".equals(age)) {
+        if (ageInt <= PAST_DAY) {
 
             pg.strokeWeight(2);
             int buffer = 2;
@@ -118,7 +131,51 @@ public abstract class EarthquakeMarker extends CommonMarker implements Comparabl
     }
 
     public int getAgeInt() {
-        String age = ((String) (this.getProperty("age"))).toLowerCase();
+        return ageInt;
+    }
+
+    /**
+     * Ages the quake to the given time, updating the age bucket and the "age" property. Ages only
+     * grow, so a quake placed at its arrival keeps the older age its feed gave it.
+     *
+     * @return true if the age bucket changed
+     */
+    public boolean updateAge(long now) {
+        if (time == 0) {
+            return false;
+        }
+        int age = PAST_HOUR;
+        while (age < PAST_MONTH && now - time >= AGE_LIMITS_MILLIS[age - 1]) {
+            age++;
+        }
+        if (age <= ageInt) {
+            return false;
+        }
+        ageInt = age;
+        setProperty("age", AGE_NAMES[age - 1]);
+        return true;
+    }
+
+    /**
+     * @return the age at which a quake leaves the given age bucket, for all but PAST_MONTH
+     */
+    public static long ageLimitMillis(int ageInt) {
+        return AGE_LIMITS_MILLIS[ageInt - 1];
+    }
+
+    /**
+     * @return the event time in epoch millis from the "time" property, or 0 if the feature had none.
+     * The map sets the property to the arrival time for such quakes before creating their markers.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    private static int ageToInt(String ageProperty) {
+        if (ageProperty == null) {
+            return PAST_MONTH;
+        }
+        String age = ageProperty.toLowerCase();
         if(age.contains("hour")) {
             return PAST_HOUR;
         } else if(age.contains("day")) {
@@ -130,6 +187,22 @@ public abstract class EarthquakeMarker extends CommonMarker implements Comparabl
         }
     }
 
+    // the quake's feature as it is now, for copies
+    protected PointFeature copyFeature() {
+        PointFeature feature = new PointFeature(new Location(getLocation()));
+        feature.setProperties(new java.util.HashMap<String, Object>(getProperties()));
+        feature.setId(getId());
+        return feature;
+    }
+
+    // carries over the state that is not in the feature
+    protected EarthquakeMarker copyState(EarthquakeMarker copy) {
+        copy.ageInt = ageInt;
+        copy.clicked = clicked;
+        copy.setSelected(isSelected());
+        return copy;
+    }
+
     public boolean isOnLand() {
         return isOnLand;
     }
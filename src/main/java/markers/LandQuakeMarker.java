@@ -23,6 +23,11 @@ public class LandQuakeMarker extends EarthquakeMarker {
 
     }
 
+    @Override
+    public CommonMarker copy() {
+        return copyState(new LandQuakeMarker(copyFeature()));
+    }
+
     public String getCountry() {
         return (String) getProperty("country");
     }
@@ -27,4 +27,9 @@ public class OceanQuakeMarker extends EarthquakeMarker {
             GraphicsUtils.drawACross(pg, x, y, lineDistFromCenter);
         }
     }
+
+    @Override
+    public CommonMarker copy() {
+        return copyState(new OceanQuakeMarker(copyFeature()));
+    }
 }
@@ -0,0 +1,44 @@
+package metrics;
+
+import org.apache.log4j.AsyncAppender;
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+
+/**
+ * Routes log4j output through an {@link AsyncAppender}, so logging from the render thread only
+ * queues an event and the console is written on log4j's dispatcher thread. When the buffer is full
+ * events are dropped and summarized rather than stalling a frame.
+ *
+ * @author abrar hayat
+ */
+
+public class AsyncLogging {
+
+    private static final int BUFFER_SIZE = 512;
+    private static final String PATTERN = "%d{HH:mm:ss.SSS} %-5p %c{1} - %m%n";
+
+    private static boolean configured;
+
+    private AsyncLogging() {
+    }
+
+    /**
+     * Attaches the asynchronous console appender to the root logger, unless log4j has already been
+     * configured elsewhere.
+     */
+    public static synchronized void configure() {
+        Logger root = Logger.getRootLogger();
+        if (configured || root.getAllAppenders().hasMoreElements()) {
+            return;
+        }
+        AsyncAppender async = new AsyncAppender();
+        async.setBufferSize(BUFFER_SIZE);
+        async.setBlocking(false);
+        async.addAppender(new ConsoleAppender(new PatternLayout(PATTERN)));
+        root.addAppender(async);
+        root.setLevel(Level.INFO);
+        configured = true;
+    }
+}
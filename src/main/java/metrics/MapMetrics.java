@@ -0,0 +1,230 @@
+package metrics;
+
+import org.apache.log4j.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Performance metrics of the map: frame time, hover and click resolution latency as histograms,
+ * the durations of the setup phases and marker counts. Recording is cheap enough for every frame
+ * and every mouse event; reading happens over JMX, in the overlay and in a periodic log summary.
+ *
+ * @author abrar hayat
+ */
+
+public class MapMetrics implements MapMetricsMBean {
+
+    private static final Logger LOG = Logger.getLogger(MapMetrics.class);
+    private static final String OBJECT_NAME = "earthquakemap:type=MapMetrics";
+    private static final long SUMMARY_INTERVAL_NANOS = 60 * 1000000000L;
+
+    private final LatencyHistogram frames = new LatencyHistogram();
+    private final LatencyHistogram hovers = new LatencyHistogram();
+    private final LatencyHistogram clicks = new LatencyHistogram();
+
+    private volatile long feedParseNanos;
+    private volatile long classificationNanos;
+    private volatile long setupNanos;
+    private volatile int quakeMarkerCount;
+    private volatile int cityMarkerCount;
+    private volatile int visibleQuakeCount;
+    private volatile int visibleCityCount;
+    private volatile long evictedQuakeCount;
+    private long lastSummaryNanos = System.nanoTime();
+
+    /**
+     * Registers these metrics with the platform MBean server. Failing to do so only disables JMX.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            LOG.warn("Could not register " + OBJECT_NAME, e);
+        }
+    }
+
+    public void recordFrame(long nanos) {
+        frames.recordNanos(nanos);
+    }
+
+    public void recordHover(long nanos) {
+        hovers.recordNanos(nanos);
+    }
+
+    public void recordClick(long nanos) {
+        clicks.recordNanos(nanos);
+    }
+
+    public void recordFeedParse(long nanos, int quakes) {
+        feedParseNanos = nanos;
+        LOG.info(String.format("Parsed %d quakes in %.1f ms", quakes, nanos / 1e6));
+    }
+
+    public void recordClassification(long nanos, int quakes) {
+        classificationNanos = nanos;
+        LOG.info(String.format("Classified %d quakes as land or ocean in %.1f ms", quakes, nanos / 1e6));
+    }
+
+    public void recordSetup(long nanos) {
+        setupNanos = nanos;
+        LOG.info(String.format("Setup finished in %.1f ms", nanos / 1e6));
+    }
+
+    public void recordCatalogUpdate(long nanos, int added, int evicted) {
+        evictedQuakeCount += evicted;
+        LOG.info(String.format("Added %d and evicted %d quakes in %.1f ms", added, evicted, nanos / 1e6));
+    }
+
+    public void setMarkerCounts(int quakes, int cities) {
+        quakeMarkerCount = quakes;
+        cityMarkerCount = cities;
+    }
+
+    public void setVisibleCounts(int quakes, int cities) {
+        visibleQuakeCount = quakes;
+        visibleCityCount = cities;
+    }
+
+    /**
+     * Logs the frame, hover and click histograms once a minute. Called every frame.
+     */
+    public void logSummaryIfDue() {
+        long now = System.nanoTime();
+        if (now - lastSummaryNanos < SUMMARY_INTERVAL_NANOS) {
+            return;
+        }
+        lastSummaryNanos = now;
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Frames " + frames.summary());
+            LOG.info("Hover " + hovers.summary());
+            LOG.info("Click " + clicks.summary());
+        }
+    }
+
+    public LatencyHistogram getFrames() {
+        return frames;
+    }
+
+    public LatencyHistogram getHovers() {
+        return hovers;
+    }
+
+    public LatencyHistogram getClicks() {
+        return clicks;
+    }
+
+    @Override
+    public long getFrameCount() {
+        return frames.getCount();
+    }
+
+    @Override
+    public double getFrameMeanMillis() {
+        return frames.getMeanMillis();
+    }
+
+    @Override
+    public double getFrameP50Millis() {
+        return frames.getPercentileMillis(50);
+    }
+
+    @Override
+    public double getFrameP95Millis() {
+        return frames.getPercentileMillis(95);
+    }
+
+    @Override
+    public double getFrameP99Millis() {
+        return frames.getPercentileMillis(99);
+    }
+
+    @Override
+    public double getFrameMaxMillis() {
+        return frames.getMaxMillis();
+    }
+
+    @Override
+    public long getHoverCount() {
+        return hovers.getCount();
+    }
+
+    @Override
+    public double getHoverP95Millis() {
+        return hovers.getPercentileMillis(95);
+    }
+
+    @Override
+    public double getHoverMaxMillis() {
+        return hovers.getMaxMillis();
+    }
+
+    @Override
+    public long getClickCount() {
+        return clicks.getCount();
+    }
+
+    @Override
+    public double getClickP95Millis() {
+        return clicks.getPercentileMillis(95);
+    }
+
+    @Override
+    public double getClickMaxMillis() {
+        return clicks.getMaxMillis();
+    }
+
+    @Override
+    public double getFeedParseMillis() {
+        return feedParseNanos / 1e6;
+    }
+
+    @Override
+    public double getClassificationMillis() {
+        return classificationNanos / 1e6;
+    }
+
+    @Override
+    public double getSetupMillis() {
+        return setupNanos / 1e6;
+    }
+
+    @Override
+    public int getQuakeMarkerCount() {
+        return quakeMarkerCount;
+    }
+
+    @Override
+    public int getCityMarkerCount() {
+        return cityMarkerCount;
+    }
+
+    @Override
+    public int getVisibleQuakeCount() {
+        return visibleQuakeCount;
+    }
+
+    @Override
+    public int getVisibleCityCount() {
+        return visibleCityCount;
+    }
+
+    @Override
+    public long getEvictedQuakeCount() {
+        return evictedQuakeCount;
+    }
+
+    @Override
+    public void resetHistograms() {
+        frames.reset();
+        hovers.reset();
+        clicks.reset();
+    }
+}
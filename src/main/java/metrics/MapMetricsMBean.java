@@ -0,0 +1,56 @@
+package metrics;
+
+/**
+ * The JMX view of {@link MapMetrics}, registered as earthquakemap:type=MapMetrics. Durations are in
+ * milliseconds.
+ *
+ * @author abrar hayat
+ */
+
+public interface MapMetricsMBean {
+
+    long getFrameCount();
+
+    double getFrameMeanMillis();
+
+    double getFrameP50Millis();
+
+    double getFrameP95Millis();
+
+    double getFrameP99Millis();
+
+    double getFrameMaxMillis();
+
+    long getHoverCount();
+
+    double getHoverP95Millis();
+
+    double getHoverMaxMillis();
+
+    long getClickCount();
+
+    double getClickP95Millis();
+
+    double getClickMaxMillis();
+
+    double getFeedParseMillis();
+
+    double getClassificationMillis();
+
+    double getSetupMillis();
+
+    int getQuakeMarkerCount();
+
+    int getCityMarkerCount();
+
+    int getVisibleQuakeCount();
+
+    int getVisibleCityCount();
+
+    long getEvictedQuakeCount();
+
+    /**
+     * Clears the frame, hover and click histograms, e.g. before measuring an interaction.
+     */
+    void resetHistograms();
+}
@@ -0,0 +1,68 @@
+package metrics;
+
+import processing.core.PConstants;
+import processing.core.PGraphics;
+
+/**
+ * An on-screen panel with the current {@link MapMetrics}, hidden until toggled.
+ *
+ * @author abrar hayat
+ */
+
+public class MetricsOverlay {
+
+    private static final int LINE_HEIGHT = 18;
+
+    private final MapMetrics metrics;
+    private final float x;
+    private final float y;
+    private boolean visible;
+
+    public MetricsOverlay(MapMetrics metrics, float x, float y) {
+        this.metrics = metrics;
+        this.x = x;
+        this.y = y;
+    }
+
+    public void toggleVisible() {
+        visible = !visible;
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public void draw(PGraphics pg) {
+        if (!visible) {
+            return;
+        }
+        String[] lines = {
+                "Metrics (I hides)",
+                String.format("Frame mean %.1f  p95 %.1f  max %.1f ms", metrics.getFrameMeanMillis(),
+                        metrics.getFrameP95Millis(), metrics.getFrameMaxMillis()),
+                String.format("Hover p95 %.2f  max %.2f ms", metrics.getHoverP95Millis(),
+                        metrics.getHoverMaxMillis()),
+                String.format("Click p95 %.2f  max %.2f ms", metrics.getClickP95Millis(),
+                        metrics.getClickMaxMillis()),
+                String.format("Parse %.0f  classify %.0f  setup %.0f ms", metrics.getFeedParseMillis(),
+                        metrics.getClassificationMillis(), metrics.getSetupMillis()),
+                "Quakes " + metrics.getVisibleQuakeCount() + "/" + metrics.getQuakeMarkerCount()
+                        + "  cities " + metrics.getVisibleCityCount() + "/" + metrics.getCityMarkerCount()
+        };
+        pg.pushStyle();
+        pg.textSize(12);
+        float width = 0;
+        for (String line : lines) {
+            width = Math.max(width, pg.textWidth(line));
+        }
+        pg.stroke(0);
+        pg.fill(255, 250, 240, 230);
+        pg.rect(x, y, width + 20, lines.length * LINE_HEIGHT + 10);
+        pg.fill(0);
+        pg.textAlign(PConstants.LEFT, PConstants.TOP);
+        for (int i = 0; i < lines.length; i++) {
+            pg.text(lines[i], x + 10, y + 5 + i * LINE_HEIGHT);
+        }
+        pg.popStyle();
+    }
+}
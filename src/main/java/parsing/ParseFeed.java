@@ -6,14 +6,45 @@ import de.fhpotsdam.unfolding.data.PointFeature;
 import de.fhpotsdam.unfolding.data.ShapeFeature;
 import de.fhpotsdam.unfolding.geo.Location;
 import processing.core.PApplet;
+import processing.data.JSONArray;
+import processing.data.JSONObject;
 import processing.data.XML;
 
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class ParseFeed {
 
+	private static final long NO_TIME = Long.MIN_VALUE;
+	private static final Pattern SUMMARY_TIME = Pattern.compile("(\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}) UTC");
+	private static final DateTimeFormatter SUMMARY_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+	private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+
+
+	/*
+	 * This method is to parse an earthquake feed in either of the formats the
+	 * USGS publishes, GeoJSON if the name ends in .geojson or .json, and the
+	 * GeoRSS Atom feed otherwise.
+	 * 
+	 * @param p - PApplet being used
+	 * @param fileName - file name or URL for data source
+	 */
+	public static List<PointFeature> parseEarthquakeFeed(PApplet p, String fileName) {
+		String name = fileName.toLowerCase();
+		if (name.endsWith(".geojson") || name.endsWith(".json")) {
+			return parseEarthquakeGeoJSON(p.loadJSONObject(fileName));
+		}
+		return parseEarthquake(p, fileName);
+	}
+
 
 	/*
 	 * This method is to parse a GeoRSS feed corresponding to earthquakes around
@@ -23,9 +54,18 @@ public class ParseFeed {
 	 * @param fileName - file name or URL for data source
 	 */
 	public static List<PointFeature> parseEarthquake(PApplet p, String fileName) {
+		return parseEarthquake(p.loadXML(fileName));
+	}
+
+	/*
+	 * Parses an already loaded GeoRSS feed, so that feeds can be read without
+	 * an applet.
+	 * 
+	 * @param rss - root element of the feed
+	 */
+	public static List<PointFeature> parseEarthquake(XML rss) {
 		List<PointFeature> features = new ArrayList<PointFeature>();
 
-		XML rss = p.loadXML(fileName);
 		// Get all items
 		XML[] itemXML = rss.getChildren("entry");
 		PointFeature point;
@@ -62,6 +102,18 @@ public class ParseFeed {
 				point.putProperty("depth", Math.abs((depthVal)));
 				
 
+				// Sets the feed id if existing, used to recognise the same event across refreshes
+				String idStr = getStringVal(itemXML[i], "id");
+				if (idStr != null) {
+					point.setId(idStr);
+				}
+
+				// Sets exact event time (epoch millis) if existing
+				long time = getEventTime(itemXML[i]);
+				if (time != NO_TIME) {
+					point.putProperty("time", time);
+				}
+
 				// Sets age if existing
 				XML[] catXML = itemXML[i].getChildren("category");
 				for (int c = 0; c < catXML.length; c++) {
@@ -79,6 +131,83 @@ public class ParseFeed {
 		}
 
 	
+	/*
+	 * This method is to parse a GeoJSON summary feed of earthquakes, as
+	 * published by the USGS, into the same features and properties as the
+	 * GeoRSS feed. The age, which GeoJSON does not carry, is derived from the
+	 * event time and the time the feed was generated.
+	 * 
+	 * @param feed - root object of the feed
+	 */
+	public static List<PointFeature> parseEarthquakeGeoJSON(JSONObject feed) {
+		List<PointFeature> features = new ArrayList<PointFeature>();
+		long generated = System.currentTimeMillis();
+		if (hasValue(feed, "metadata")) {
+			generated = feed.getJSONObject("metadata").getLong("generated", generated);
+		}
+
+		JSONArray items = feed.getJSONArray("features");
+		for (int i = 0; i < items.size(); i++) {
+			JSONObject item = items.getJSONObject(i);
+			if (!hasValue(item, "geometry")) {
+				continue;
+			}
+			// coordinates are longitude, latitude and depth in km
+			JSONArray coordinates = item.getJSONObject("geometry").getJSONArray("coordinates");
+			PointFeature point = new PointFeature(new Location(coordinates.getFloat(1), coordinates.getFloat(0)));
+			features.add(point);
+
+			JSONObject properties = item.getJSONObject("properties");
+			String titleStr = properties.getString("title", null);
+			if (titleStr != null) {
+				point.putProperty("title", titleStr);
+			}
+			if (hasValue(properties, "mag")) {
+				point.putProperty("magnitude", properties.getFloat("mag"));
+			} else if (titleStr != null) {
+				point.putProperty("magnitude", Float.parseFloat(titleStr.substring(2, 5)));
+			}
+
+			// one decimal place, as for the GeoRSS feed
+			float depthVal = coordinates.size() > 2 ? coordinates.getFloat(2) : 0;
+			point.putProperty("depth", Math.abs((int) (depthVal * 10) / 10f));
+
+			String idStr = item.getString("id", null);
+			if (idStr != null) {
+				point.setId(idStr);
+			}
+
+			if (hasValue(properties, "time")) {
+				long time = properties.getLong("time");
+				point.putProperty("time", time);
+				point.putProperty("age", getAge(generated - time));
+			}
+		}
+
+		return features;
+	}
+
+	/*
+	 * Checks that a key is present and not null.
+	 */
+	private static boolean hasValue(JSONObject object, String key) {
+		return object.hasKey(key) && !object.isNull(key);
+	}
+
+	/*
+	 * Gets the age category the GeoRSS feed would give an event of this age.
+	 */
+	private static String getAge(long ageMillis) {
+		if (ageMillis < HOUR_MILLIS) {
+			return "Past Hour";
+		} else if (ageMillis < 24 * HOUR_MILLIS) {
+			return "Past Day";
+		} else if (ageMillis < 7 * 24 * HOUR_MILLIS) {
+			return "Past Week";
+		}
+		return "Past Month";
+	}
+
 	/*
 	 * Gets location from georss:point tag
 	 * 
@@ -120,6 +249,32 @@ public class ParseFeed {
 		return str;
 	}
 	
+	/*
+	 * Gets the event time from the "Time" entry of the summary, falling back to
+	 * the entry's updated timestamp.
+	 * 
+	 * @return epoch millis, or NO_TIME if neither is present
+	 */
+	private static long getEventTime(XML itemXML) {
+		String summary = getStringVal(itemXML, "summary");
+		if (summary != null) {
+			Matcher matcher = SUMMARY_TIME.matcher(summary);
+			if (matcher.find()) {
+				return LocalDateTime.parse(matcher.group(1), SUMMARY_TIME_FORMAT)
+						.toInstant(ZoneOffset.UTC).toEpochMilli();
+			}
+		}
+		String updated = getStringVal(itemXML, "updated");
+		if (updated != null) {
+			try {
+				return Instant.parse(updated.trim()).toEpochMilli();
+			} catch (DateTimeParseException e) {
+				return NO_TIME;
+			}
+		}
+		return NO_TIME;
+	}
+
 	/*
 	 * Get float value from child node
 	 */
@@ -0,0 +1,149 @@
+package retention;
+
+import markers.EarthquakeMarker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which quakes a long-running map keeps: those no older than a maximum age, and of those
+ * at most a maximum number, newest first.
+ *
+ * The kept quakes are a doubly linked queue in time order, oldest at the head, with a map
+ * from each quake to its node. Eviction takes from the head and any quake can be unlinked through
+ * the map, both in O(1). Feeds arrive mostly in time order, so adding is usually an append at the
+ * tail.
+ *
+ * @author abrar hayat
+ */
+
+public class QuakeRetention {
+
+    private final long maxAgeMillis;
+    private final int maxCount;
+    private final Map<EarthquakeMarker, Node> nodes = new HashMap<EarthquakeMarker, Node>();
+    private Node head;
+    private Node tail;
+
+    /**
+     * @param maxAgeMillis quakes older than this are evicted, Long.MAX_VALUE keeps them regardless
+     * @param maxCount     at most this many quakes are kept
+     */
+    public QuakeRetention(long maxAgeMillis, int maxCount) {
+        if (maxAgeMillis <= 0 || maxCount <= 0) {
+            throw new IllegalArgumentException("Retention limits must be positive: " + maxAgeMillis
+                    + " ms, " + maxCount + " quakes");
+        }
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxCount = maxCount;
+    }
+
+    /**
+     * Adds a quake in time order, after any quakes of the same time.
+     *
+     * @param time the time the quake is aged from, normally its event time
+     * @return false if the quake was already kept
+     */
+    public boolean add(EarthquakeMarker quake, long time) {
+        if (nodes.containsKey(quake)) {
+            return false;
+        }
+        Node node = new Node(quake, time);
+        Node previous = tail;
+        while (previous != null && previous.time > node.time) {
+            previous = previous.previous;
+        }
+        node.previous = previous;
+        node.next = previous == null ? head : previous.next;
+        if (node.previous != null) {
+            node.previous.next = node;
+        } else {
+            head = node;
+        }
+        if (node.next != null) {
+            node.next.previous = node;
+        } else {
+            tail = node;
+        }
+        nodes.put(quake, node);
+        return true;
+    }
+
+    /**
+     * @return false if the quake was not kept
+     */
+    public boolean remove(EarthquakeMarker quake) {
+        Node node = nodes.remove(quake);
+        if (node == null) {
+            return false;
+        }
+        unlink(node);
+        return true;
+    }
+
+    public boolean contains(EarthquakeMarker quake) {
+        return nodes.containsKey(quake);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Tells whether a quake of the given time would survive the next eviction, so that quakes
+     * which would be evicted straight away need not be added anywhere.
+     */
+    public boolean wouldRetain(long time, long now) {
+        if (now - time > maxAgeMillis) {
+            return false;
+        }
+        return nodes.size() < maxCount || time > head.time;
+    }
+
+    /**
+     * Removes the quakes older than the maximum age at the given time, then the oldest quakes
+     * beyond the maximum count.
+     *
+     * @return the removed quakes, oldest first
+     */
+    public List<EarthquakeMarker> evict(long now) {
+        List<EarthquakeMarker> evicted = new ArrayList<EarthquakeMarker>();
+        while (head != null && (now - head.time > maxAgeMillis || nodes.size() > maxCount)) {
+            Node oldest = head;
+            nodes.remove(oldest.quake);
+            unlink(oldest);
+            evicted.add(oldest.quake);
+        }
+        return evicted;
+    }
+
+    private void unlink(Node node) {
+        if (node.previous != null) {
+            node.previous.next = node.next;
+        } else {
+            head = node.next;
+        }
+        if (node.next != null) {
+            node.next.previous = node.previous;
+        } else {
+            tail = node.previous;
+        }
+        node.previous = null;
+        node.next = null;
+    }
+
+    private static class Node {
+
+        final EarthquakeMarker quake;
+        final long time;
+        Node previous;
+        Node next;
+
+        Node(EarthquakeMarker quake, long time) {
+            this.quake = quake;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package server;
+
+import markers.EarthquakeMarker;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable, versioned copy of the quake catalog, indexed for tile queries. Records are sorted
+ * by the Morton (Z-order) code of their Web Mercator position at zoom 16, which interleaves the
+ * bits of x and y, so the quakes of any tile at zoom 16 or below are one contiguous range found by
+ * binary search.
+ *
+ * @author abrar hayat
+ */
+
+class CatalogSnapshot {
+
+    static final int INDEX_ZOOM = 16;
+    private static final double MAX_LATITUDE = 85.0511;
+    private static final String OCEAN = "Ocean";
+
+    final long version;
+    private final QuakeRecord[] records;
+    private final long[] codes;
+    private final String countryStats;
+
+    CatalogSnapshot(long version, Collection<EarthquakeMarker> quakes) {
+        this.version = version;
+        final QuakeRecord[] unsorted = new QuakeRecord[quakes.size()];
+        final long[] unsortedCodes = new long[quakes.size()];
+        Integer[] order = new Integer[quakes.size()];
+        int i = 0;
+        for (EarthquakeMarker quake : quakes) {
+            unsorted[i] = new QuakeRecord(quake);
+            unsortedCodes[i] = morton(indexX(unsorted[i].lon), indexY(unsorted[i].lat));
+            order[i] = i;
+            i++;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(unsortedCodes[a], unsortedCodes[b]);
+            }
+        });
+        records = new QuakeRecord[order.length];
+        codes = new long[order.length];
+        for (i = 0; i < order.length; i++) {
+            records[i] = unsorted[order[i]];
+            codes[i] = unsortedCodes[order[i]];
+        }
+        countryStats = buildCountryStats();
+    }
+
+    int size() {
+        return records.length;
+    }
+
+    /**
+     * @return the tile as a GeoJSON FeatureCollection
+     */
+    String tileGeoJson(int zoom, int x, int y) {
+        StringBuilder json = new StringBuilder("{\"type\":\"FeatureCollection\",\"features\":[");
+        int shift = INDEX_ZOOM - Math.min(zoom, INDEX_ZOOM);
+        int indexX = x >> Math.max(0, zoom - INDEX_ZOOM);
+        int indexY = y >> Math.max(0, zoom - INDEX_ZOOM);
+        long from = morton(indexX << shift, indexY << shift);
+        long to = from + (1L << (2 * shift));
+        boolean first = true;
+        for (int i = lowerBound(from); i < records.length && codes[i] < to; i++) {
+            // beyond the index zoom the range is the enclosing index tile, so check exactly
+            if (zoom > INDEX_ZOOM && !isInTile(records[i], zoom, x, y)) {
+                continue;
+            }
+            if (!first) {
+                json.append(',');
+            }
+            records[i].appendFeature(json);
+            first = false;
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * @return the tiles at the given zoom that hold any quake, as {x, y} pairs
+     */
+    int[][] occupiedTiles(int zoom) {
+        int shift = 2 * (INDEX_ZOOM - zoom);
+        int count = 0;
+        long[] tiles = new long[records.length];
+        for (int i = 0; i < records.length; i++) {
+            long tile = codes[i] >>> shift;
+            if (count == 0 || tiles[count - 1] != tile) {
+                tiles[count++] = tile;
+            }
+        }
+        int[][] result = new int[count][];
+        for (int i = 0; i < count; i++) {
+            result[i] = new int[]{deinterleave(tiles[i]), deinterleave(tiles[i] >>> 1)};
+        }
+        return result;
+    }
+
+    String countryStatsJson() {
+        return countryStats;
+    }
+
+    private String buildCountryStats() {
+        Map<String, float[]> stats = new TreeMap<String, float[]>();
+        for (QuakeRecord record : records) {
+            String key = record.onLand && record.country != null ? record.country : OCEAN;
+            float[] values = stats.get(key);
+            if (values == null) {
+                // count, magnitude sum, max magnitude, depth sum
+                values = new float[4];
+                stats.put(key, values);
+            }
+            values[0]++;
+            values[1] += record.magnitude;
+            values[2] = Math.max(values[2], record.magnitude);
+            values[3] += record.depth;
+        }
+        StringBuilder json = new StringBuilder("{\"version\":").append(version).append(",\"countries\":{");
+        boolean first = true;
+        for (Map.Entry<String, float[]> entry : stats.entrySet()) {
+            float[] values = entry.getValue();
+            if (!first) {
+                json.append(',');
+            }
+            Json.appendString(json, entry.getKey());
+            json.append(":{\"count\":").append((int) values[0])
+                    .append(",\"meanMagnitude\":").append(Math.round(values[1] / values[0] * 100) / 100.0)
+                    .append(",\"maxMagnitude\":").append(values[2])
+                    .append(",\"meanDepth\":").append(Math.round(values[3] / values[0] * 10) / 10.0)
+                    .append('}');
+            first = false;
+        }
+        return json.append("}}").toString();
+    }
+
+    private int lowerBound(long code) {
+        int lo = 0;
+        int hi = codes.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (codes[mid] < code) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static boolean isInTile(QuakeRecord record, int zoom, int x, int y) {
+        double size = Math.pow(2, zoom);
+        return (int) Math.floor(worldX(record.lon) * size) == x && (int) Math.floor(worldY(record.lat) * size) == y;
+    }
+
+    private static int indexX(float lon) {
+        return clampIndex(worldX(lon));
+    }
+
+    private static int indexY(float lat) {
+        return clampIndex(worldY(lat));
+    }
+
+    private static int clampIndex(double unit) {
+        int cells = 1 << INDEX_ZOOM;
+        return Math.max(0, Math.min(cells - 1, (int) Math.floor(unit * cells)));
+    }
+
+    // x and y as fractions of the world, 0 at the west and north edges
+    private static double worldX(float lon) {
+        return (lon + 180) / 360.0;
+    }
+
+    private static double worldY(float lat) {
+        double radians = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, lat)));
+        return (1 - Math.log(Math.tan(radians) + 1 / Math.cos(radians)) / Math.PI) / 2;
+    }
+
+    // x in the even bits, y in the odd bits
+    private static long morton(int x, int y) {
+        return interleave(x) | (interleave(y) << 1);
+    }
+
+    private static long interleave(int value) {
+        long bits = value & 0xFFFFFFFFL;
+        bits = (bits | (bits << 16)) & 0x0000FFFF0000FFFFL;
+        bits = (bits | (bits << 8)) & 0x00FF00FF00FF00FFL;
+        bits = (bits | (bits << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        bits = (bits | (bits << 2)) & 0x3333333333333333L;
+        bits = (bits | (bits << 1)) & 0x5555555555555555L;
+        return bits;
+    }
+
+    private static int deinterleave(long bits) {
+        bits &= 0x5555555555555555L;
+        bits = (bits | (bits >>> 1)) & 0x3333333333333333L;
+        bits = (bits | (bits >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        bits = (bits | (bits >>> 4)) & 0x00FF00FF00FF00FFL;
+        bits = (bits | (bits >>> 8)) & 0x0000FFFF0000FFFFL;
+        bits = (bits | (bits >>> 16)) & 0x00000000FFFFFFFFL;
+        return (int) bits;
+    }
+}
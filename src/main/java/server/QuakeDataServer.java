@@ -0,0 +1,224 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import markers.EarthquakeMarker;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the classified quake catalog to other local applications over HTTP:
+ *
+ * <pre>
+ *   /tiles/{z}/{x}/{y}.geojson   the quakes in a Web Mercator tile, as a GeoJSON FeatureCollection
+ *   /stats/countries.json        quake count, magnitude and depth per country, and for the oceans
+ * </pre>
+ *
+ * Responses are built from an immutable snapshot that the map publishes whenever its catalog
+ * changes. The occupied tiles of the first zoom levels are encoded as soon as a snapshot is
+ * published, other tiles on first request, and all of them are kept in a cache bounded by size.
+ * Every response carries an ETag, so clients polling for changes get an empty 304 until the
+ * catalog changes.
+ *
+ * Requests are handled by the JDK's NIO based server on a fixed pool of threads. Since every
+ * response is served from memory, a request holds its thread only for as long as it takes to write
+ * the bytes.
+ *
+ * @author abrar hayat
+ */
+
+public class QuakeDataServer {
+
+    private static final Logger LOG = Logger.getLogger(QuakeDataServer.class);
+    private static final Pattern TILE_PATH = Pattern.compile("/tiles/(\\d{1,2})/(\\d{1,10})/(\\d{1,10})\\.geojson");
+    private static final String STATS_PATH = "/stats/countries.json";
+    private static final int MAX_ZOOM = 24;
+    private static final int PRECOMPUTED_MAX_ZOOM = 3;
+    private static final int THREADS = 16;
+    private static final int BACKLOG = 256;
+    private static final long CACHE_BYTES = 32L * 1024 * 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ResponseCache cache = new ResponseCache(CACHE_BYTES);
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private volatile CatalogSnapshot snapshot = new CatalogSnapshot(0, new ArrayList<EarthquakeMarker>());
+    private long version;
+
+    /**
+     * Binds the server to the loopback interface; it answers requests once started.
+     */
+    public QuakeDataServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "quake-data-server-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                } catch (RuntimeException e) {
+                    LOG.error("Failed to answer " + exchange.getRequestURI(), e);
+                    sendStatus(exchange, 500);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+        LOG.info("Serving quake data on http://localhost:" + getPort() + "/");
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Replaces the served catalog. The quakes are copied on the calling thread, which must be the
+     * one that owns the markers; the first zoom levels are then encoded on the server's threads.
+     */
+    public void publish(Collection<EarthquakeMarker> quakes) {
+        final CatalogSnapshot published;
+        synchronized (this) {
+            published = new CatalogSnapshot(++version, quakes);
+            snapshot = published;
+        }
+        cache.clear();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                int tiles = 0;
+                for (int zoom = 0; zoom <= PRECOMPUTED_MAX_ZOOM && published == snapshot; zoom++) {
+                    for (int[] tile : published.occupiedTiles(zoom)) {
+                        tileResponse(published, zoom, tile[0], tile[1]);
+                        tiles++;
+                    }
+                }
+                LOG.info("Published " + published.size() + " quakes as version " + published.version + ", "
+                        + tiles + " tiles precomputed in " + (System.nanoTime() - start) / 1000000 + " ms, cache holds "
+                        + cache.describe());
+            }
+        });
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+            sendStatus(exchange, 405);
+            return;
+        }
+        CatalogSnapshot current = snapshot;
+        String path = exchange.getRequestURI().getPath();
+        Response response;
+        Matcher tile = TILE_PATH.matcher(path);
+        if (tile.matches()) {
+            int zoom = Integer.parseInt(tile.group(1));
+            long x = Long.parseLong(tile.group(2));
+            long y = Long.parseLong(tile.group(3));
+            if (zoom > MAX_ZOOM || x >= 1L << zoom || y >= 1L << zoom) {
+                sendStatus(exchange, 400);
+                return;
+            }
+            response = tileResponse(current, zoom, (int) x, (int) y);
+        } else if (STATS_PATH.equals(path)) {
+            response = cachedResponse(current, path);
+            if (response == null) {
+                response = new Response(current.countryStatsJson(), Response.JSON);
+                cache.put(key(current, path), response);
+            }
+        } else {
+            sendStatus(exchange, 404);
+            return;
+        }
+        send(exchange, response, "HEAD".equals(method));
+    }
+
+    private Response tileResponse(CatalogSnapshot current, int zoom, int x, int y) {
+        String path = "/tiles/" + zoom + "/" + x + "/" + y;
+        Response response = cachedResponse(current, path);
+        if (response == null) {
+            response = new Response(current.tileGeoJson(zoom, x, y), Response.GEOJSON);
+            cache.put(key(current, path), response);
+        }
+        return response;
+    }
+
+    private Response cachedResponse(CatalogSnapshot current, String path) {
+        return cache.get(key(current, path));
+    }
+
+    // keyed by version too, so a slow request can't cache an old response after a publish
+    private static String key(CatalogSnapshot current, String path) {
+        return current.version + path;
+    }
+
+    private static void send(HttpExchange exchange, Response response, boolean headOnly) throws IOException {
+        exchange.getResponseHeaders().set("ETag", response.etag);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        if (matchesEtag(exchange.getRequestHeaders().get("If-None-Match"), response.etag)) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", response.contentType + "; charset=utf-8");
+        if (headOnly) {
+            exchange.getResponseHeaders().set("Content-Length", Integer.toString(response.body.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(200, response.body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(response.body);
+        out.close();
+    }
+
+    private static boolean matchesEtag(List<String> headers, String etag) {
+        if (headers == null) {
+            return false;
+        }
+        for (String header : headers) {
+            for (String candidate : header.split(",")) {
+                String trimmed = candidate.trim();
+                if (trimmed.equals("*") || trimmed.equals(etag) || trimmed.equals("W/" + etag)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void sendStatus(HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+}
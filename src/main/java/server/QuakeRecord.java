@@ -0,0 +1,57 @@
+package server;
+
+import markers.EarthquakeMarker;
+
+/**
+ * An immutable copy of what the map knows about one quake, taken on the render thread so that
+ * server threads never touch the markers themselves.
+ *
+ * @author abrar hayat
+ */
+
+class QuakeRecord {
+
+    final String id;
+    final String title;
+    final float lat;
+    final float lon;
+    final float magnitude;
+    final float depth;
+    final long time;
+    final String age;
+    final boolean onLand;
+    final String country;
+    final double threatRadiusKm;
+
+    QuakeRecord(EarthquakeMarker quake) {
+        id = quake.getId();
+        title = quake.getTitle();
+        lat = quake.getLocation().getLat();
+        lon = quake.getLocation().getLon();
+        magnitude = quake.getMagnitude();
+        depth = quake.getDepth();
+        time = quake.getTime();
+        age = quake.getStringProperty("age");
+        onLand = quake.isOnLand();
+        country = onLand ? quake.getStringProperty("country") : null;
+        threatRadiusKm = quake.threatCircle();
+    }
+
+    void appendFeature(StringBuilder json) {
+        json.append("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[")
+                .append(lon).append(',').append(lat).append("]},\"properties\":{\"id\":");
+        Json.appendString(json, id);
+        json.append(",\"title\":");
+        Json.appendString(json, title);
+        json.append(",\"magnitude\":").append(magnitude)
+                .append(",\"depth\":").append(depth)
+                .append(",\"time\":").append(time)
+                .append(",\"age\":");
+        Json.appendString(json, age);
+        json.append(",\"onLand\":").append(onLand)
+                .append(",\"country\":");
+        Json.appendString(json, country);
+        json.append(",\"threatRadiusKm\":").append(Math.round(threatRadiusKm * 10) / 10.0)
+                .append("}}");
+    }
+}
@@ -0,0 +1,28 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * An encoded response body with its content type and entity tag, built once and sent as is.
+ *
+ * @author abrar hayat
+ */
+
+class Response {
+
+    static final String GEOJSON = "application/geo+json";
+    static final String JSON = "application/json";
+
+    final byte[] body;
+    final String contentType;
+    final String etag;
+
+    Response(String body, String contentType) {
+        this.body = body.getBytes(StandardCharsets.UTF_8);
+        this.contentType = contentType;
+        CRC32 crc = new CRC32();
+        crc.update(this.body);
+        etag = "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(this.body.length) + "\"";
+    }
+}
@@ -0,0 +1,59 @@
+package server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A least recently used cache of encoded responses, bounded by the total size of their bodies
+ * rather than their number, since a tile of the whole world is far larger than one of a city.
+ *
+ * @author abrar hayat
+ */
+
+class ResponseCache {
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Response> entries = new LinkedHashMap<String, Response>(64, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized Response get(String key) {
+        Response response = entries.get(key);
+        if (response == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return response;
+    }
+
+    synchronized void put(String key, Response response) {
+        if (response.body.length > maxBytes) {
+            return;
+        }
+        Response previous = entries.put(key, response);
+        if (previous != null) {
+            bytes -= previous.body.length;
+        }
+        bytes += response.body.length;
+        Iterator<Response> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().body.length;
+            eldest.remove();
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    synchronized String describe() {
+        return entries.size() + " responses, " + bytes / 1024 + " KB, " + hits + " hits, " + misses + " misses";
+    }
+}
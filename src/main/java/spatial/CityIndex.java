@@ -0,0 +1,256 @@
+package spatial;
+
+import de.fhpotsdam.unfolding.geo.Location;
+import de.fhpotsdam.unfolding.utils.GeoUtils;
+import markers.CityMarker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A KD-tree over city locations as unit vectors on the sphere, for k-nearest and within-radius
+ * queries. The straight line (chord) distance between unit vectors grows with the great circle
+ * distance, so an ordinary 3D KD-tree search with a chord bound finds exactly the cities within a
+ * great circle radius, with no special cases at the poles or the date line.
+ *
+ * The tree is stored implicitly: each range of the arrays is split at its median, which sits in
+ * the middle of the range, so there are no node objects.
+ *
+ * @author abrar hayat
+ */
+
+public class CityIndex {
+
+    private static final double EARTH_RADIUS_KM = GeoUtils.EARTH_RADIUS_KM;
+
+    /**
+     * A city found by a query, with its great circle distance from the query location.
+     */
+    public static class Neighbour {
+
+        private final CityMarker city;
+        private final double distanceKm;
+        private final double chordSquared;
+
+        Neighbour(CityMarker city, double chordSquared) {
+            this.city = city;
+            this.chordSquared = chordSquared;
+            this.distanceKm = 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(chordSquared) / 2));
+        }
+
+        public CityMarker getCity() {
+            return city;
+        }
+
+        public double getDistanceKm() {
+            return distanceKm;
+        }
+    }
+
+    private static final Comparator<Neighbour> NEAREST_FIRST = new Comparator<Neighbour>() {
+        @Override
+        public int compare(Neighbour a, Neighbour b) {
+            return Double.compare(a.chordSquared, b.chordSquared);
+        }
+    };
+
+    private final CityMarker[] cities;
+    // x, y and z of each city, in tree order
+    private final double[] points;
+    private final byte[] axes;
+
+    public CityIndex(Collection<CityMarker> cityMarkers) {
+        cities = cityMarkers.toArray(new CityMarker[0]);
+        points = new double[3 * cities.length];
+        axes = new byte[cities.length];
+        for (int i = 0; i < cities.length; i++) {
+            toUnitVector(cities[i].getLocation(), points, 3 * i);
+        }
+        build(0, cities.length);
+    }
+
+    public int size() {
+        return cities.length;
+    }
+
+    /**
+     * @return the cities within the given great circle distance, in no particular order
+     */
+    public List<Neighbour> withinRadius(Location location, double radiusKm) {
+        List<Neighbour> result = new ArrayList<Neighbour>();
+        if (cities.length > 0) {
+            double[] query = toUnitVector(location, new double[3], 0);
+            double chord = chordOf(radiusKm);
+            searchRadius(0, cities.length, query, chord * chord, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return up to k cities nearest to the location, nearest first
+     */
+    public List<Neighbour> nearest(Location location, int k) {
+        if (k <= 0 || cities.length == 0) {
+            return new ArrayList<Neighbour>();
+        }
+        double[] query = toUnitVector(location, new double[3], 0);
+        PriorityQueue<Neighbour> best = new PriorityQueue<Neighbour>(k, Collections.reverseOrder(NEAREST_FIRST));
+        searchNearest(0, cities.length, query, k, best);
+        List<Neighbour> result = new ArrayList<Neighbour>(best);
+        Collections.sort(result, NEAREST_FIRST);
+        return result;
+    }
+
+    /**
+     * @return the total population, in millions, of the cities within the given distance
+     */
+    public double populationWithin(Location location, double radiusKm) {
+        double population = 0;
+        for (Neighbour neighbour : withinRadius(location, radiusKm)) {
+            population += neighbour.city.getPopulation();
+        }
+        return population;
+    }
+
+    private void searchRadius(int lo, int hi, double[] query, double limitSquared, List<Neighbour> result) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        double distanceSquared = distanceSquared(mid, query);
+        if (distanceSquared <= limitSquared) {
+            result.add(new Neighbour(cities[mid], distanceSquared));
+        }
+        double offset = query[axes[mid]] - points[3 * mid + axes[mid]];
+        boolean crossSplit = offset * offset <= limitSquared;
+        if (offset <= 0) {
+            searchRadius(lo, mid, query, limitSquared, result);
+            if (crossSplit) {
+                searchRadius(mid + 1, hi, query, limitSquared, result);
+            }
+        } else {
+            searchRadius(mid + 1, hi, query, limitSquared, result);
+            if (crossSplit) {
+                searchRadius(lo, mid, query, limitSquared, result);
+            }
+        }
+    }
+
+    private void searchNearest(int lo, int hi, double[] query, int k, PriorityQueue<Neighbour> best) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        double distanceSquared = distanceSquared(mid, query);
+        if (best.size() < k) {
+            best.add(new Neighbour(cities[mid], distanceSquared));
+        } else if (distanceSquared < best.peek().chordSquared) {
+            best.poll();
+            best.add(new Neighbour(cities[mid], distanceSquared));
+        }
+        double offset = query[axes[mid]] - points[3 * mid + axes[mid]];
+        int nearLo = offset <= 0 ? lo : mid + 1;
+        int nearHi = offset <= 0 ? mid : hi;
+        searchNearest(nearLo, nearHi, query, k, best);
+        // the far side can only hold closer cities if the splitting plane is closer than the worst kept
+        if (best.size() < k || offset * offset < best.peek().chordSquared) {
+            searchNearest(offset <= 0 ? mid + 1 : lo, offset <= 0 ? hi : mid, query, k, best);
+        }
+    }
+
+    private void build(int lo, int hi) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int axis = widestAxis(lo, hi);
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, axis);
+        axes[mid] = (byte) axis;
+        build(lo, mid);
+        build(mid + 1, hi);
+    }
+
+    private int widestAxis(int lo, int hi) {
+        int widest = 0;
+        double widestSpread = -1;
+        for (int axis = 0; axis < 3; axis++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = lo; i < hi; i++) {
+                double value = points[3 * i + axis];
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            if (max - min > widestSpread) {
+                widestSpread = max - min;
+                widest = axis;
+            }
+        }
+        return widest;
+    }
+
+    // moves the k-th smallest along the axis to index k, with smaller or equal values before it
+    private void select(int lo, int hi, int k, int axis) {
+        while (hi > lo) {
+            double pivot = points[3 * ((lo + hi) >>> 1) + axis];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (points[3 * i + axis] < pivot) {
+                    i++;
+                }
+                while (points[3 * j + axis] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        CityMarker city = cities[i];
+        cities[i] = cities[j];
+        cities[j] = city;
+        for (int axis = 0; axis < 3; axis++) {
+            double value = points[3 * i + axis];
+            points[3 * i + axis] = points[3 * j + axis];
+            points[3 * j + axis] = value;
+        }
+    }
+
+    private double distanceSquared(int index, double[] query) {
+        double dx = points[3 * index] - query[0];
+        double dy = points[3 * index + 1] - query[1];
+        double dz = points[3 * index + 2] - query[2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private static double chordOf(double distanceKm) {
+        double angle = distanceKm / EARTH_RADIUS_KM;
+        return angle >= Math.PI ? 2 : 2 * Math.sin(angle / 2);
+    }
+
+    private static double[] toUnitVector(Location location, double[] into, int offset) {
+        double lat = Math.toRadians(location.getLat());
+        double lon = Math.toRadians(location.getLon());
+        into[offset] = Math.cos(lat) * Math.cos(lon);
+        into[offset + 1] = Math.cos(lat) * Math.sin(lon);
+        into[offset + 2] = Math.sin(lat);
+        return into;
+    }
+}
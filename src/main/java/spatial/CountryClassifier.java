@@ -0,0 +1,107 @@
+package spatial;
+
+import de.fhpotsdam.unfolding.data.PointFeature;
+import de.fhpotsdam.unfolding.geo.Location;
+import de.fhpotsdam.unfolding.marker.AbstractShapeMarker;
+import de.fhpotsdam.unfolding.marker.Marker;
+import de.fhpotsdam.unfolding.marker.MultiMarker;
+import markers.EarthquakeMarker;
+import markers.LandQuakeMarker;
+import markers.OceanQuakeMarker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides whether a quake happened on land, and in which country, from the country polygons.
+ *
+ * Each polygon is tested only when the location falls inside its bounding box, which rules out
+ * nearly every country with four comparisons, so the full point in polygon test runs for one or
+ * two of them rather than for all of them.
+ *
+ * @author abrar hayat
+ */
+
+public class CountryClassifier {
+
+    private final List<Polygon> polygons = new ArrayList<Polygon>();
+
+    /**
+     * @param countries country markers as created from countries.geo.json, each a shape marker or
+     *                  a multi marker of shape markers, with the country in its "name" property
+     */
+    public CountryClassifier(List<Marker> countries) {
+        for (Marker country : countries) {
+            String name = country.getStringProperty("name");
+            if (country.getClass() == MultiMarker.class) {
+                for (Marker marker : ((MultiMarker) country).getMarkers()) {
+                    polygons.add(new Polygon(name, (AbstractShapeMarker) marker));
+                }
+            } else {
+                polygons.add(new Polygon(name, (AbstractShapeMarker) country));
+            }
+        }
+    }
+
+    /**
+     * @return the name of the country at the location, or null if it is at sea
+     */
+    public String countryAt(Location location) {
+        float lat = location.getLat();
+        float lon = location.getLon();
+        for (Polygon polygon : polygons) {
+            if (polygon.contains(lat, lon, location)) {
+                return polygon.country;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether the quake is on land, recording the country in its "country" property if so.
+     */
+    public boolean isLand(PointFeature quake) {
+        String country = countryAt(quake.getLocation());
+        if (country == null) {
+            return false;
+        }
+        quake.addProperty("country", country);
+        return true;
+    }
+
+    /**
+     * @return a land or ocean marker for the quake, as its location decides
+     */
+    public EarthquakeMarker createMarker(PointFeature quake) {
+        if (isLand(quake)) {
+            return new LandQuakeMarker(quake);
+        }
+        return new OceanQuakeMarker(quake);
+    }
+
+    private static class Polygon {
+
+        private final String country;
+        private final AbstractShapeMarker shape;
+        private float minLat = Float.MAX_VALUE;
+        private float maxLat = -Float.MAX_VALUE;
+        private float minLon = Float.MAX_VALUE;
+        private float maxLon = -Float.MAX_VALUE;
+
+        Polygon(String country, AbstractShapeMarker shape) {
+            this.country = country;
+            this.shape = shape;
+            for (Location vertex : shape.getLocations()) {
+                minLat = Math.min(minLat, vertex.getLat());
+                maxLat = Math.max(maxLat, vertex.getLat());
+                minLon = Math.min(minLon, vertex.getLon());
+                maxLon = Math.max(maxLon, vertex.getLon());
+            }
+        }
+
+        boolean contains(float lat, float lon, Location location) {
+            return lat >= minLat && lat <= maxLat && lon >= minLon && lon <= maxLon
+                    && shape.isInsideByLocation(location);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package stats;
+
+/**
+ * Names the ocean a sea quake is in from its coordinates alone, with boxes that follow the
+ * continents only roughly. It is good enough to group activity, not to draw boundaries.
+ *
+ * @author abrar hayat
+ */
+
+class OceanRegions {
+
+    static final String ARCTIC = "Arctic Ocean";
+    static final String SOUTHERN = "Southern Ocean";
+    static final String MEDITERRANEAN = "Mediterranean Sea";
+    static final String ATLANTIC = "Atlantic Ocean";
+    static final String INDIAN = "Indian Ocean";
+    static final String PACIFIC = "Pacific Ocean";
+
+    private OceanRegions() {
+    }
+
+    static String of(float lat, float lon) {
+        if (lat > 66) {
+            return ARCTIC;
+        }
+        if (lat < -60) {
+            return SOUTHERN;
+        }
+        if (lat >= 30 && lat <= 46 && lon >= -6 && lon < 37) {
+            return MEDITERRANEAN;
+        }
+        // the Americas divide the Pacific from the Atlantic, further west in the north
+        float atlanticWest = lat >= 20 ? -98 : lat >= 8 ? -83 : -70;
+        if (lon >= atlanticWest && lon < 20) {
+            return ATLANTIC;
+        }
+        // the Indian ocean reaches east to Indonesia, and south of it to Tasmania
+        if (lat < 30 && lon >= 20 && (lon < 100 || (lat < -10 && lon < 147))) {
+            return INDIAN;
+        }
+        return PACIFIC;
+    }
+}
@@ -0,0 +1,226 @@
+package stats;
+
+import markers.EarthquakeMarker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Continuously updated quake counts, energy release and largest magnitude per country and per
+ * ocean, over the past hour, day and week.
+ *
+ * Each window is a ring of time buckets per region, held in primitive arrays. A quake adds to the
+ * bucket of its event time in each ring, and a query sums the buckets still inside the window, so
+ * both cost the same however many quakes have passed through. A bucket is reset when the ring comes
+ * round to it again, so nothing needs to expire quakes. Windows move in whole buckets, so a window
+ * may include up to one bucket width of older quakes.
+ *
+ * @author abrar hayat
+ */
+
+public class RollingStats {
+
+    /**
+     * A rolling window, split into buckets of a fixed width.
+     */
+    public enum Window {
+        HOUR("past hour", 60 * 1000L, 60),
+        DAY("past 24 hours", 15 * 60 * 1000L, 96),
+        WEEK("past 7 days", 60 * 60 * 1000L, 168);
+
+        private final String label;
+        private final long bucketMillis;
+        private final int buckets;
+
+        Window(String label, long bucketMillis, int buckets) {
+            this.label = label;
+            this.bucketMillis = bucketMillis;
+            this.buckets = buckets;
+        }
+
+        public long getMillis() {
+            return bucketMillis * buckets;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    public static final String ALL_REGIONS = "All regions";
+    private static final String UNKNOWN_COUNTRY = "Unknown country";
+    private static final int INITIAL_REGIONS = 32;
+
+    private final Map<String, Integer> regionIndices = new HashMap<String, Integer>();
+    private final List<String> regions = new ArrayList<String>();
+    private final Ring[] rings = new Ring[Window.values().length];
+    private long latestTime = Long.MIN_VALUE;
+
+    public RollingStats() {
+        for (Window window : Window.values()) {
+            rings[window.ordinal()] = new Ring(window);
+        }
+        regionIndex(ALL_REGIONS);
+    }
+
+    /**
+     * @return the country of a land quake, or the ocean of a sea quake
+     */
+    public static String regionOf(EarthquakeMarker quake) {
+        if (quake.isOnLand()) {
+            String country = quake.getStringProperty("country");
+            return country != null ? country : UNKNOWN_COUNTRY;
+        }
+        return OceanRegions.of(quake.getLocation().getLat(), quake.getLocation().getLon());
+    }
+
+    /**
+     * Energy radiated by a quake, from the Gutenberg-Richter relation log10 E = 1.5 M + 4.8.
+     */
+    public static double energyJoules(float magnitude) {
+        return Math.pow(10, 1.5 * magnitude + 4.8);
+    }
+
+    /**
+     * Counts a classified quake in its region and in the total.
+     */
+    public synchronized void add(EarthquakeMarker quake) {
+        long time = quake.getTime();
+        float magnitude = quake.getMagnitude();
+        double energy = energyJoules(magnitude);
+        int region = regionIndex(regionOf(quake));
+        for (Ring ring : rings) {
+            ring.add(region, time, magnitude, energy);
+            ring.add(0, time, magnitude, energy);
+        }
+        latestTime = Math.max(latestTime, time);
+    }
+
+    /**
+     * @return the activity of the region in the window ending at the given time
+     */
+    public synchronized WindowStats get(String region, Window window, long now) {
+        Integer index = regionIndices.get(region);
+        if (index == null) {
+            return new WindowStats(region, window, 0, 0, 0);
+        }
+        return rings[window.ordinal()].sum(index, now);
+    }
+
+    /**
+     * @return the regions with any quakes in the window ending at the given time, most active
+     * first, without the total over all regions
+     */
+    public synchronized List<WindowStats> getMostActive(Window window, long now, int limit) {
+        List<WindowStats> active = new ArrayList<WindowStats>();
+        Ring ring = rings[window.ordinal()];
+        for (int region = 1; region < regions.size(); region++) {
+            WindowStats stats = ring.sum(region, now);
+            if (stats.getCount() > 0) {
+                active.add(stats);
+            }
+        }
+        Collections.sort(active, new Comparator<WindowStats>() {
+            @Override
+            public int compare(WindowStats a, WindowStats b) {
+                if (a.getCount() != b.getCount()) {
+                    return b.getCount() - a.getCount();
+                }
+                return Double.compare(b.getEnergyJoules(), a.getEnergyJoules());
+            }
+        });
+        return active.size() > limit ? new ArrayList<WindowStats>(active.subList(0, limit)) : active;
+    }
+
+    /**
+     * @return the latest event time added, or Long.MIN_VALUE if none was
+     */
+    public synchronized long getLatestTime() {
+        return latestTime;
+    }
+
+    private int regionIndex(String region) {
+        Integer index = regionIndices.get(region);
+        if (index == null) {
+            index = regions.size();
+            regionIndices.put(region, index);
+            regions.add(region);
+            for (Ring ring : rings) {
+                ring.ensureRegions(regions.size());
+            }
+        }
+        return index;
+    }
+
+    /**
+     * The buckets of one window for every region, region after region, each holding the epoch it
+     * was last reset for, so that buckets left over from an earlier turn of the ring are ignored.
+     */
+    private class Ring {
+
+        private final Window window;
+        private long[] epochs = new long[0];
+        private int[] counts = new int[0];
+        private double[] energies = new double[0];
+        private float[] maxMagnitudes = new float[0];
+
+        Ring(Window window) {
+            this.window = window;
+            ensureRegions(INITIAL_REGIONS);
+        }
+
+        void ensureRegions(int regionCount) {
+            int size = regionCount * window.buckets;
+            if (size <= epochs.length) {
+                return;
+            }
+            int newSize = Math.max(size, epochs.length * 2);
+            int oldSize = epochs.length;
+            epochs = Arrays.copyOf(epochs, newSize);
+            Arrays.fill(epochs, oldSize, newSize, Long.MIN_VALUE);
+            counts = Arrays.copyOf(counts, newSize);
+            energies = Arrays.copyOf(energies, newSize);
+            maxMagnitudes = Arrays.copyOf(maxMagnitudes, newSize);
+        }
+
+        void add(int region, long time, float magnitude, double energy) {
+            long epoch = Math.floorDiv(time, window.bucketMillis);
+            int bucket = region * window.buckets + (int) Math.floorMod(epoch, (long) window.buckets);
+            if (epochs[bucket] != epoch) {
+                if (epochs[bucket] > epoch) {
+                    return;  // older than the window the ring has moved on to
+                }
+                epochs[bucket] = epoch;
+                counts[bucket] = 0;
+                energies[bucket] = 0;
+                maxMagnitudes[bucket] = 0;
+            }
+            counts[bucket]++;
+            energies[bucket] += energy;
+            maxMagnitudes[bucket] = Math.max(maxMagnitudes[bucket], magnitude);
+        }
+
+        WindowStats sum(int region, long now) {
+            long newest = Math.floorDiv(now, window.bucketMillis);
+            long oldest = newest - window.buckets + 1;
+            int count = 0;
+            double energy = 0;
+            float maxMagnitude = 0;
+            int first = region * window.buckets;
+            for (int bucket = first; bucket < first + window.buckets; bucket++) {
+                if (epochs[bucket] >= oldest && epochs[bucket] <= newest) {
+                    count += counts[bucket];
+                    energy += energies[bucket];
+                    maxMagnitude = Math.max(maxMagnitude, maxMagnitudes[bucket]);
+                }
+            }
+            return new WindowStats(regions.get(region), window, count, energy, maxMagnitude);
+        }
+    }
+}
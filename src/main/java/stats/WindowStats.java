@@ -0,0 +1,63 @@
+package stats;
+
+/**
+ * The quake activity of one region over one window: how many quakes, the energy they released and
+ * the largest magnitude.
+ *
+ * @author abrar hayat
+ */
+
+public class WindowStats {
+
+    private final String region;
+    private final RollingStats.Window window;
+    private final int count;
+    private final double energyJoules;
+    private final float maxMagnitude;
+
+    WindowStats(String region, RollingStats.Window window, int count, double energyJoules, float maxMagnitude) {
+        this.region = region;
+        this.window = window;
+        this.count = count;
+        this.energyJoules = energyJoules;
+        this.maxMagnitude = maxMagnitude;
+    }
+
+    public String getRegion() {
+        return region;
+    }
+
+    public RollingStats.Window getWindow() {
+        return window;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public double getEnergyJoules() {
+        return energyJoules;
+    }
+
+    public float getMaxMagnitude() {
+        return maxMagnitude;
+    }
+
+    /**
+     * @return e.g. "12 quakes, max M5.1, 3.2 TJ"
+     */
+    public String describe() {
+        return count + (count == 1 ? " quake" : " quakes") + ", max M" + String.format("%.1f", maxMagnitude) + ", "
+                + formatJoules(energyJoules);
+    }
+
+    private static String formatJoules(double joules) {
+        String[] prefixes = {"", "k", "M", "G", "T", "P", "E", "Z"};
+        int prefix = 0;
+        while (joules >= 1000 && prefix < prefixes.length - 1) {
+            joules /= 1000;
+            prefix++;
+        }
+        return String.format("%.1f %sJ", joules, prefixes[prefix]);
+    }
+}
@@ -0,0 +1,347 @@
+package tiles;
+
+import de.fhpotsdam.unfolding.core.Coordinate;
+import de.fhpotsdam.unfolding.geo.Location;
+import de.fhpotsdam.unfolding.providers.AbstractMapProvider;
+import org.apache.log4j.Logger;
+import processing.core.PImage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A two level tile cache in front of any map provider. Decoded tiles are kept in an in-memory LRU
+ * bounded by a byte budget, and tiles fetched from the network are also kept encoded on disk.
+ * Every requested tile schedules its ring of neighbours to be prefetched on a background pool,
+ * so panning mostly hits tiles that are already decoded. A tile is loaded at most once at a time:
+ * a request for a tile that is already being loaded waits for that load instead of starting another.
+ *
+ * @author abrar hayat
+ */
+
+public class CachingMapProvider extends AbstractMapProvider {
+
+    private static final Logger LOG = Logger.getLogger(CachingMapProvider.class);
+    private static final int PREFETCH_THREADS = 2;
+    private static final int PREFETCH_QUEUE_SIZE = 64;
+
+    private final AbstractMapProvider delegate;
+    private final long memoryBudgetBytes;
+    private final File diskDirectory;
+    private final LinkedHashMap<Coordinate, PImage> memory = new LinkedHashMap<Coordinate, PImage>(64, 0.75f, true);
+    private long memoryBytes;
+    // queued or running prefetches, so a neighbour is queued only once
+    private final Set<Coordinate> prefetching =
+            Collections.newSetFromMap(new ConcurrentHashMap<Coordinate, Boolean>());
+    // loads under way, shared by requests and prefetches of the same tile
+    private final ConcurrentHashMap<Coordinate, FutureTask<PImage>> loading =
+            new ConcurrentHashMap<Coordinate, FutureTask<PImage>>();
+    private final ThreadPoolExecutor prefetchPool;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong prefetched = new AtomicLong();
+
+    /**
+     * @param delegate          the provider tiles are loaded from on a miss
+     * @param memoryBudgetBytes the maximum size of decoded tiles kept in memory
+     * @param diskDirectory     where downloaded tiles are stored, or null to keep them in memory only
+     */
+    public CachingMapProvider(AbstractMapProvider delegate, long memoryBudgetBytes, File diskDirectory) {
+        super(delegate.projection);
+        this.delegate = delegate;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.diskDirectory = diskDirectory;
+        prefetchPool = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(PREFETCH_QUEUE_SIZE), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tile-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                // the queue is full, so this neighbour is simply not prefetched
+                prefetching.remove(((PrefetchTask) task).coordinate);
+            }
+        });
+        prefetchPool.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public PImage getTile(Coordinate coordinate) {
+        Coordinate key = coordinate.copy();
+        PImage image = load(key, false);
+        prefetchNeighbours(key);
+        return image;
+    }
+
+    /**
+     * Returns the delegate's URLs so that Unfolding can still load the tile directly if the cache
+     * could not.
+     */
+    @Override
+    public String[] getTileUrls(Coordinate coordinate) {
+        return delegate.getTileUrls(coordinate);
+    }
+
+    @Override
+    public int tileWidth() {
+        return delegate.tileWidth();
+    }
+
+    @Override
+    public int tileHeight() {
+        return delegate.tileHeight();
+    }
+
+    @Override
+    public Coordinate locationCoordinate(Location location) {
+        return delegate.locationCoordinate(location);
+    }
+
+    @Override
+    public Location coordinateLocation(Coordinate coordinate) {
+        return delegate.coordinateLocation(coordinate);
+    }
+
+    @Override
+    public Coordinate sourceCoordinate(Coordinate coordinate) {
+        return delegate.sourceCoordinate(coordinate);
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getPrefetched() {
+        return prefetched.get();
+    }
+
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public String getStats() {
+        return String.format("Tiles - memory hits: %d, disk hits: %d, misses: %d, prefetched: %d, cached: %d KB",
+                getMemoryHits(), getDiskHits(), getMisses(), getPrefetched(), getMemoryBytes() / 1024);
+    }
+
+    private PImage load(final Coordinate key, final boolean prefetch) {
+        PImage image = getFromMemory(key);
+        if (image != null) {
+            if (!prefetch) {
+                memoryHits.incrementAndGet();
+            }
+            return image;
+        }
+        FutureTask<PImage> task = new FutureTask<PImage>(new Callable<PImage>() {
+            @Override
+            public PImage call() {
+                return loadMissing(key, prefetch);
+            }
+        });
+        FutureTask<PImage> running = loading.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                loading.remove(key, task);
+            }
+        } else if (prefetch) {
+            return null;  // someone else is already loading it
+        } else {
+            // the tile is on its way, so it counts as found in memory
+            memoryHits.incrementAndGet();
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            LOG.warn("Could not load tile " + key, e.getCause());
+            return null;
+        }
+    }
+
+    private PImage loadMissing(Coordinate key, boolean prefetch) {
+        // a load of the same tile may have finished between the memory check and taking over
+        PImage image = getFromMemory(key);
+        if (image != null) {
+            if (!prefetch) {
+                memoryHits.incrementAndGet();
+            }
+            return image;
+        }
+        try {
+            image = TileImages.decode(readFromDisk(key));
+            if (image != null) {
+                if (!prefetch) {
+                    diskHits.incrementAndGet();
+                }
+            } else {
+                if (!prefetch) {
+                    misses.incrementAndGet();
+                }
+                image = fetch(key);
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not load tile " + key + ": " + e.getMessage());
+            return null;
+        }
+        if (image != null) {
+            putInMemory(key, image);
+            if (prefetch) {
+                prefetched.incrementAndGet();
+            }
+        }
+        return image;
+    }
+
+    private PImage fetch(Coordinate key) throws IOException {
+        PImage image = delegate.getTile(key);
+        if (image != null) {
+            return image;
+        }
+        String[] urls = delegate.getTileUrls(key);
+        // layered tiles are composed by Unfolding itself from getTileUrls
+        if (urls == null || urls.length != 1) {
+            return null;
+        }
+        byte[] data = TileImages.download(urls[0]);
+        writeToDisk(key, data);
+        return TileImages.decode(data);
+    }
+
+    private void prefetchNeighbours(Coordinate center) {
+        int tilesPerSide = 1 << (int) center.zoom;
+        for (int rowOffset = -1; rowOffset <= 1; rowOffset++) {
+            for (int columnOffset = -1; columnOffset <= 1; columnOffset++) {
+                float row = center.row + rowOffset;
+                float column = center.column + columnOffset;
+                if ((rowOffset == 0 && columnOffset == 0) || row < 0 || row >= tilesPerSide
+                        || column < 0 || column >= tilesPerSide) {
+                    continue;
+                }
+                Coordinate neighbour = new Coordinate(row, column, center.zoom);
+                if (!isInMemory(neighbour) && prefetching.add(neighbour)) {
+                    prefetchPool.execute(new PrefetchTask(neighbour));
+                }
+            }
+        }
+    }
+
+    private class PrefetchTask implements Runnable {
+
+        private final Coordinate coordinate;
+
+        PrefetchTask(Coordinate coordinate) {
+            this.coordinate = coordinate;
+        }
+
+        @Override
+        public void run() {
+            try {
+                load(coordinate, true);
+            } finally {
+                prefetching.remove(coordinate);
+            }
+        }
+    }
+
+    private synchronized PImage getFromMemory(Coordinate key) {
+        return memory.get(key);
+    }
+
+    private synchronized boolean isInMemory(Coordinate key) {
+        return memory.containsKey(key);
+    }
+
+    private synchronized void putInMemory(Coordinate key, PImage image) {
+        PImage previous = memory.put(key, image);
+        if (previous != null) {
+            memoryBytes -= TileImages.sizeInBytes(previous);
+        }
+        memoryBytes += TileImages.sizeInBytes(image);
+        Iterator<Map.Entry<Coordinate, PImage>> eldest = memory.entrySet().iterator();
+        while (memoryBytes > memoryBudgetBytes && memory.size() > 1 && eldest.hasNext()) {
+            memoryBytes -= TileImages.sizeInBytes(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    private File diskFile(Coordinate key) {
+        return new File(diskDirectory, (int) key.zoom + File.separator + (int) key.column + File.separator
+                + (int) key.row + ".tile");
+    }
+
+    private byte[] readFromDisk(Coordinate key) throws IOException {
+        if (diskDirectory == null) {
+            return null;
+        }
+        File file = diskFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            return TileImages.readFully(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeToDisk(Coordinate key, byte[] data) throws IOException {
+        if (diskDirectory == null) {
+            return;
+        }
+        File file = diskFile(key);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        // written under a temporary name so a concurrent reader never sees a partial tile
+        File temporary = new File(parent, file.getName() + "." + Thread.currentThread().getId() + ".tmp");
+        OutputStream out = new FileOutputStream(temporary);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+        }
+    }
+}
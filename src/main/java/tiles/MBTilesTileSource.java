@@ -0,0 +1,134 @@
+package tiles;
+
+import org.apache.log4j.Logger;
+import org.sqlite.SQLiteConfig;
+import processing.core.PImage;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads tiles from an MBTiles file through a small pool of read-only SQLite connections, each with
+ * its tile lookup prepared once. The caller, one of Unfolding's tile loader or prefetch threads,
+ * borrows a connection for the read and decodes the blob after handing it back, so the pool bounds
+ * how many reads run at once while decoding runs in parallel.
+ *
+ * @author abrar hayat
+ */
+
+public class MBTilesTileSource {
+
+    private static final Logger LOG = Logger.getLogger(MBTilesTileSource.class);
+    private static final String SQLITE_JDBC_DRIVER = "org.sqlite.JDBC";
+    private static final String TILE_QUERY =
+            "SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+
+    private final BlockingQueue<PooledConnection> connections;
+    private final List<PooledConnection> allConnections = new ArrayList<PooledConnection>();
+    private volatile boolean closed;
+
+    /**
+     * @param jdbcConnectionString the sqlite JDBC URL of the MBTiles file
+     * @param poolSize             the number of connections, and so of concurrent reads
+     */
+    public MBTilesTileSource(String jdbcConnectionString, int poolSize) throws SQLException {
+        try {
+            Class.forName(SQLITE_JDBC_DRIVER);
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("SQLite JDBC driver not found", e);
+        }
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        connections = new ArrayBlockingQueue<PooledConnection>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            PooledConnection connection = new PooledConnection(
+                    DriverManager.getConnection(jdbcConnectionString, config.toProperties()));
+            allConnections.add(connection);
+            connections.add(connection);
+        }
+    }
+
+    /**
+     * Loads a tile on the calling thread, waiting for a free connection. Never called from the
+     * render thread.
+     *
+     * @param tmsRow the row in the TMS scheme used by MBTiles, counted from the bottom
+     * @return the decoded tile, or null if there is none or the source is closed
+     */
+    public PImage loadTile(int zoom, int column, int tmsRow) {
+        try {
+            return TileImages.decode(readTile(zoom, column, tmsRow));
+        } catch (SQLException e) {
+            if (!closed) {
+                LOG.warn("Could not read tile " + zoom + "/" + column + "/" + tmsRow + ": " + e.getMessage());
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not decode tile " + zoom + "/" + column + "/" + tmsRow + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     * Closes the connections. Tiles requested afterwards are null.
+     */
+    public void close() {
+        closed = true;
+        for (PooledConnection connection : allConnections) {
+            connection.close();
+        }
+    }
+
+    private byte[] readTile(int zoom, int column, int tmsRow) throws SQLException, InterruptedException {
+        if (closed) {
+            return null;
+        }
+        PooledConnection connection = connections.take();
+        try {
+            return connection.readTile(zoom, column, tmsRow);
+        } finally {
+            connections.add(connection);
+        }
+    }
+
+    private static class PooledConnection {
+
+        private final Connection connection;
+        private final PreparedStatement tileQuery;
+
+        PooledConnection(Connection connection) throws SQLException {
+            this.connection = connection;
+            this.tileQuery = connection.prepareStatement(TILE_QUERY);
+        }
+
+        byte[] readTile(int zoom, int column, int tmsRow) throws SQLException {
+            tileQuery.setInt(1, zoom);
+            tileQuery.setInt(2, column);
+            tileQuery.setInt(3, tmsRow);
+            ResultSet result = tileQuery.executeQuery();
+            try {
+                return result.next() ? result.getBytes(1) : null;
+            } finally {
+                result.close();
+            }
+        }
+
+        void close() {
+            try {
+                tileQuery.close();
+                connection.close();
+            } catch (SQLException e) {
+                LOG.warn("Could not close an MBTiles connection: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package tiles;
+
+import de.fhpotsdam.unfolding.core.Coordinate;
+import de.fhpotsdam.unfolding.providers.MBTilesMapProvider;
+import processing.core.PImage;
+
+import java.sql.SQLException;
+
+/**
+ * An MBTiles map provider that reads through a {@link MBTilesTileSource} instead of the single
+ * shared connection of Unfolding's MBTilesLoaderUtils.
+ *
+ * @author abrar hayat
+ */
+
+public class PooledMBTilesMapProvider extends MBTilesMapProvider {
+
+    private final MBTilesTileSource source;
+
+    public PooledMBTilesMapProvider(String mbTilesPath, int poolSize) throws SQLException {
+        super(mbTilesPath);
+        source = new MBTilesTileSource(jdbcConnectionString, poolSize);
+    }
+
+    @Override
+    public PImage getTile(Coordinate coordinate) {
+        int tilesPerSide = 1 << (int) coordinate.zoom;
+        // MBTiles rows follow the TMS scheme and count from the bottom
+        int tmsRow = tilesPerSide - (int) coordinate.row - 1;
+        return source.loadTile((int) coordinate.zoom, (int) coordinate.column, tmsRow);
+    }
+
+    public MBTilesTileSource getSource() {
+        return source;
+    }
+}
@@ -0,0 +1,76 @@
+package tiles;
+
+import processing.core.PConstants;
+import processing.core.PImage;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Helpers to fetch and decode encoded tile images without going through a PApplet, so they can
+ * run on worker threads.
+ *
+ * @author abrar hayat
+ */
+
+public class TileImages {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Decodes an encoded (PNG/JPEG) tile into a PImage.
+     *
+     * @return the image, or null if the bytes could not be decoded
+     */
+    public static PImage decode(byte[] data) throws IOException {
+        if (data == null) {
+            return null;
+        }
+        BufferedImage buffered = ImageIO.read(new ByteArrayInputStream(data));
+        if (buffered == null) {
+            return null;
+        }
+        int width = buffered.getWidth();
+        int height = buffered.getHeight();
+        PImage image = new PImage(width, height, PConstants.ARGB);
+        buffered.getRGB(0, 0, width, height, image.pixels, 0, width);
+        image.updatePixels();
+        return image;
+    }
+
+    /**
+     * @return the approximate in-memory size of a decoded image in bytes
+     */
+    public static long sizeInBytes(PImage image) {
+        return 4L * image.width * image.height;
+    }
+
+    public static byte[] download(String url) throws IOException {
+        URLConnection connection = new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        InputStream in = connection.getInputStream();
+        try {
+            return readFully(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+        byte[] buffer = new byte[8 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
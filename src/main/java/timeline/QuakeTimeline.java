@@ -0,0 +1,265 @@
+package timeline;
+
+import markers.EarthquakeMarker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A time sorted index over earthquake markers. The visible window is found by binary search and
+ * moving the window only reports the quakes that enter or leave it, so scrubbing costs
+ * O(log n + changed) instead of a pass over the whole catalog.
+ *
+ * Removed quakes leave an empty slot behind, and the slots are compacted once they make up half
+ * of the index, so removing the oldest quakes as they expire costs O(log n) each on average.
+ *
+ * @author abrar hayat
+ */
+
+public class QuakeTimeline {
+
+    /**
+     * Notified about quakes crossing the window boundary.
+     */
+    public interface WindowListener {
+        void entered(EarthquakeMarker quake);
+
+        void left(EarthquakeMarker quake);
+    }
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final WindowListener listener;
+    private long[] times = new long[INITIAL_CAPACITY];
+    private EarthquakeMarker[] quakes = new EarthquakeMarker[INITIAL_CAPACITY];
+    private int size;
+    // empty slots among the first size, in all and inside the window, and the first quake after any
+    private int dead;
+    private int deadInWindow;
+    private int first;
+
+    // the current window is [windowLo, windowHi) in index space and [windowStart, windowEnd] in time
+    private int windowLo;
+    private int windowHi;
+    private long windowStart = Long.MIN_VALUE;
+    private long windowEnd = Long.MAX_VALUE;
+
+    public QuakeTimeline(WindowListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a quake in time order, reporting it as entered when it falls inside the current window.
+     * Feeds arrive mostly in time order, so this is usually an append.
+     */
+    public void add(EarthquakeMarker quake) {
+        long time = quake.getTime();
+        ensureCapacity(size + 1);
+        int index = upperBound(time);
+        System.arraycopy(times, index, times, index + 1, size - index);
+        System.arraycopy(quakes, index, quakes, index + 1, size - index);
+        times[index] = time;
+        quakes[index] = quake;
+        size++;
+        if (index <= first) {
+            first = index;
+        }
+
+        boolean inWindow = time >= windowStart && time <= windowEnd;
+        if (index < windowLo || (index == windowLo && !inWindow)) {
+            windowLo++;
+            windowHi++;
+        } else if (inWindow) {
+            windowHi++;
+        }
+        if (inWindow) {
+            listener.entered(quake);
+        }
+    }
+
+    /**
+     * Removes quakes, leaving their slots empty. Removed quakes are not reported as leaving the
+     * window, since their owner is dropping them everywhere anyway.
+     */
+    public void removeAll(Collection<EarthquakeMarker> removed) {
+        for (EarthquakeMarker quake : removed) {
+            long time = quake.getTime();
+            for (int index = lowerBound(time); index < size && times[index] == time; index++) {
+                if (quakes[index] == quake) {
+                    quakes[index] = null;
+                    dead++;
+                    if (index >= windowLo && index < windowHi) {
+                        deadInWindow++;
+                    }
+                    break;
+                }
+            }
+        }
+        while (first < size && quakes[first] == null) {
+            first++;
+        }
+        // drop empty slots from the end, so that the latest time is that of a quake
+        while (size > 0 && quakes[size - 1] == null) {
+            size--;
+            dead--;
+            if (size >= windowLo && size < windowHi) {
+                deadInWindow--;
+            }
+            windowLo = Math.min(windowLo, size);
+            windowHi = Math.min(windowHi, size);
+        }
+        first = Math.min(first, size);
+        if (dead * 2 > size) {
+            compact();
+        }
+    }
+
+    /**
+     * Moves the window to [start, end] and notifies the listener about the quakes whose
+     * visibility changed.
+     */
+    public void setWindow(long start, long end) {
+        int newLo = lowerBound(start);
+        int newHi = upperBound(end);
+        if (newHi < newLo) {
+            newHi = newLo;
+        }
+        // the fire methods return the empty slots they passed, to keep count of those in the window
+        deadInWindow -= fireLeft(windowLo, Math.min(windowHi, newLo));
+        deadInWindow -= fireLeft(Math.max(windowLo, newHi), windowHi);
+        deadInWindow += fireEntered(newLo, Math.min(newHi, windowLo));
+        deadInWindow += fireEntered(Math.max(newLo, windowHi), newHi);
+        windowLo = newLo;
+        windowHi = newHi;
+        windowStart = start;
+        windowEnd = end;
+    }
+
+    /**
+     * @return the quakes later than after and no later than until, in time order
+     */
+    public List<EarthquakeMarker> getQuakes(long after, long until) {
+        List<EarthquakeMarker> found = new ArrayList<EarthquakeMarker>();
+        for (int index = upperBound(after), end = upperBound(until); index < end; index++) {
+            if (quakes[index] != null) {
+                found.add(quakes[index]);
+            }
+        }
+        return found;
+    }
+
+    public int size() {
+        return size - dead;
+    }
+
+    public int windowCount() {
+        return windowHi - windowLo - deadInWindow;
+    }
+
+    public long getEarliestTime() {
+        return size == 0 ? 0L : times[first];
+    }
+
+    public long getLatestTime() {
+        return size == 0 ? 0L : times[size - 1];
+    }
+
+    public long getWindowStart() {
+        return windowStart;
+    }
+
+    public long getWindowEnd() {
+        return windowEnd;
+    }
+
+    private int fireLeft(int from, int to) {
+        int empty = 0;
+        for (int index = from; index < to; index++) {
+            if (quakes[index] == null) {
+                empty++;
+            } else {
+                listener.left(quakes[index]);
+            }
+        }
+        return empty;
+    }
+
+    private int fireEntered(int from, int to) {
+        int empty = 0;
+        for (int index = from; index < to; index++) {
+            if (quakes[index] == null) {
+                empty++;
+            } else {
+                listener.entered(quakes[index]);
+            }
+        }
+        return empty;
+    }
+
+    private void compact() {
+        int kept = 0;
+        int newLo = windowLo;
+        int newHi = windowHi;
+        for (int index = 0; index < size; index++) {
+            if (quakes[index] == null) {
+                if (index < windowLo) {
+                    newLo--;
+                }
+                if (index < windowHi) {
+                    newHi--;
+                }
+                continue;
+            }
+            times[kept] = times[index];
+            quakes[kept] = quakes[index];
+            kept++;
+        }
+        Arrays.fill(quakes, kept, size, null);
+        size = kept;
+        windowLo = newLo;
+        windowHi = newHi;
+        dead = 0;
+        deadInWindow = 0;
+        first = 0;
+    }
+
+    // first index whose time is >= time
+    private int lowerBound(long time) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // first index whose time is > time
+    private int upperBound(long time) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] <= time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > times.length) {
+            int newCapacity = Math.max(capacity, times.length * 2);
+            times = Arrays.copyOf(times, newCapacity);
+            quakes = Arrays.copyOf(quakes, newCapacity);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package timeline;
+
+import processing.core.PApplet;
+import processing.core.PConstants;
+import processing.core.PGraphics;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * A scrubbable timeline slider with animated replay that drives the window of a {@link QuakeTimeline}.
+ * The cursor marks the end of the window, and the window reaches back by the selected length
+ * (or to the first quake, so replaying with "All" shows the catalog building up).
+ *
+ * @author abrar hayat
+ */
+
+public class TimelineControl {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long[] WINDOW_LENGTHS = {HOUR, 24 * HOUR, 7 * 24 * HOUR, Long.MAX_VALUE};
+    private static final String[] WINDOW_NAMES = {"1 hour", "1 day", "7 days", "All"};
+    // replay covers the whole catalog in about this many frames
+    private static final int REPLAY_FRAMES = 600;
+    private static final int HANDLE_SIZE = 12;
+
+    private final QuakeTimeline timeline;
+    private final float x;
+    private final float y;
+    private final float width;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm 'UTC'");
+
+    private long cursor;
+    private int windowLengthIndex = WINDOW_LENGTHS.length - 1;
+    private boolean playing;
+    private boolean dragging;
+
+    public TimelineControl(QuakeTimeline timeline, float x, float y, float width) {
+        this.timeline = timeline;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        cursor = timeline.getLatestTime();
+        applyWindow();
+    }
+
+    /**
+     * Advances the replay by one frame, wrapping to the start when the end is reached.
+     */
+    public void update() {
+        if (!playing || timeline.size() == 0) {
+            return;
+        }
+        long span = Math.max(1, timeline.getLatestTime() - timeline.getEarliestTime());
+        long next = cursor + Math.max(1, span / REPLAY_FRAMES);
+        if (next > timeline.getLatestTime()) {
+            next = timeline.getEarliestTime();
+        }
+        setCursor(next);
+    }
+
+    public void draw(PGraphics pg) {
+        pg.pushStyle();
+        pg.stroke(120);
+        pg.strokeWeight(2);
+        pg.line(x, y, x + width, y);
+
+        float handleX = x + width * fraction(cursor);
+        if (windowLengthIndex != WINDOW_LENGTHS.length - 1) {
+            float startX = x + width * fraction(cursor - WINDOW_LENGTHS[windowLengthIndex]);
+            pg.noStroke();
+            pg.fill(150, 30, 30, 80);
+            pg.rect(startX, y - HANDLE_SIZE / 2, handleX - startX, HANDLE_SIZE);
+        }
+        pg.stroke(0);
+        pg.strokeWeight(1);
+        pg.fill(255, 250, 240);
+        pg.rect(handleX - HANDLE_SIZE / 2, y - HANDLE_SIZE, HANDLE_SIZE, 2 * HANDLE_SIZE);
+
+        pg.fill(0);
+        pg.textSize(12);
+        pg.textAlign(PConstants.LEFT, PConstants.TOP);
+        pg.text(dateFormat.format(new Date(timeline.getEarliestTime())), x, y + 18);
+        pg.textAlign(PConstants.RIGHT, PConstants.TOP);
+        pg.text(dateFormat.format(new Date(timeline.getLatestTime())), x + width, y + 18);
+        pg.textAlign(PConstants.CENTER, PConstants.TOP);
+        pg.text(dateFormat.format(new Date(cursor)) + "   Window: " + WINDOW_NAMES[windowLengthIndex]
+                        + "   Showing: " + timeline.windowCount() + "/" + timeline.size()
+                        + (playing ? "   (playing)" : ""),
+                x + width / 2, y + 18);
+        pg.text("Drag to scrub   Space: play/pause   W: window length", x + width / 2, y + 36);
+        pg.popStyle();
+    }
+
+    /**
+     * Re-applies the window after quakes were added or removed. A cursor that was at the newest
+     * quake follows the newest quake, so a live map keeps showing new quakes.
+     *
+     * @param previousLatest the latest quake time before the change
+     */
+    public void catalogChanged(long previousLatest) {
+        if (!playing && !dragging && cursor >= previousLatest) {
+            cursor = Math.max(cursor, timeline.getLatestTime());
+        }
+        applyWindow();
+    }
+
+    public boolean mousePressed(float mouseX, float mouseY) {
+        dragging = isOnSlider(mouseX, mouseY);
+        if (dragging) {
+            scrubTo(mouseX);
+        }
+        return dragging;
+    }
+
+    public boolean mouseDragged(float mouseX) {
+        if (dragging) {
+            scrubTo(mouseX);
+        }
+        return dragging;
+    }
+
+    public void mouseReleased() {
+        dragging = false;
+    }
+
+    public void togglePlaying() {
+        playing = !playing;
+    }
+
+    public void cycleWindowLength() {
+        windowLengthIndex = (windowLengthIndex + 1) % WINDOW_LENGTHS.length;
+        applyWindow();
+    }
+
+    private void scrubTo(float mouseX) {
+        float fraction = PApplet.constrain((mouseX - x) / width, 0, 1);
+        long earliest = timeline.getEarliestTime();
+        setCursor(earliest + (long) (fraction * (timeline.getLatestTime() - earliest)));
+    }
+
+    private void setCursor(long cursor) {
+        this.cursor = cursor;
+        applyWindow();
+    }
+
+    private void applyWindow() {
+        long length = WINDOW_LENGTHS[windowLengthIndex];
+        long start = length == Long.MAX_VALUE ? Long.MIN_VALUE : cursor - length;
+        timeline.setWindow(start, cursor);
+    }
+
+    private float fraction(long time) {
+        long earliest = timeline.getEarliestTime();
+        long span = timeline.getLatestTime() - earliest;
+        if (span <= 0) {
+            return 1;
+        }
+        return PApplet.constrain((float) (time - earliest) / span, 0, 1);
+    }
+
+    private boolean isOnSlider(float mouseX, float mouseY) {
+        return mouseX >= x - HANDLE_SIZE && mouseX <= x + width + HANDLE_SIZE
+                && Math.abs(mouseY - y) <= HANDLE_SIZE;
+    }
+}
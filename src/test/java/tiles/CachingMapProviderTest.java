@@ -0,0 +1,230 @@
+package tiles;
+
+import de.fhpotsdam.unfolding.core.Coordinate;
+import de.fhpotsdam.unfolding.providers.AbstractMapProvider;
+import de.fhpotsdam.unfolding.providers.MBTilesMapProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import processing.core.PImage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs the tile cache offline over the bundled blankLight-1-3.mbtiles: a miss, a memory hit, a disk
+ * hit and a request that joins a load of the same tile already under way. Skipped unless
+ * -Dearthquakemap.offline=true, which the Gradle build passes on by default.
+ *
+ * @author abrar hayat
+ */
+
+public class CachingMapProviderTest {
+
+    private static final String OFFLINE_PROPERTY = "earthquakemap.offline";
+    private static final long MEMORY_BUDGET_BYTES = 16L * 1024 * 1024;
+    private static final Coordinate TILE = new Coordinate(1, 2, 2);
+
+    private File diskDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue(Boolean.getBoolean(OFFLINE_PROPERTY));
+        diskDirectory = File.createTempFile("tile-cache-test", "");
+        assertTrue(diskDirectory.delete() && diskDirectory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        if (diskDirectory != null) {
+            delete(diskDirectory);
+        }
+    }
+
+    @Test
+    public void missThenMemoryHit() {
+        CachingMapProvider cache = new CachingMapProvider(new MBTilesMapProvider(MBTilesTileSourceTest.MBTILES),
+                MEMORY_BUDGET_BYTES, null);
+        PImage first = cache.getTile(TILE);
+        assertNotNull(first);
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getMemoryHits());
+
+        assertSame(first, cache.getTile(TILE));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getMemoryHits());
+    }
+
+    @Test
+    public void diskHitAfterRestart() throws Exception {
+        UrlTileProvider urls = new UrlTileProvider(diskDirectory);
+        CachingMapProvider cache = new CachingMapProvider(urls, MEMORY_BUDGET_BYTES, diskDirectory);
+        assertNotNull(cache.getTile(TILE));
+        assertEquals(1, cache.getMisses());
+
+        // a new cache over the same directory starts with nothing in memory
+        CachingMapProvider restarted = new CachingMapProvider(urls, MEMORY_BUDGET_BYTES, diskDirectory);
+        PImage image = restarted.getTile(TILE);
+        assertNotNull(image);
+        assertEquals(256, image.width);
+        assertEquals(1, restarted.getDiskHits());
+        assertEquals(0, restarted.getMisses());
+    }
+
+    @Test
+    public void concurrentRequestsShareOneLoad() throws Exception {
+        BlockingProvider blocking = new BlockingProvider();
+        final CachingMapProvider cache = new CachingMapProvider(blocking, MEMORY_BUDGET_BYTES, null);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            Callable<PImage> request = new Callable<PImage>() {
+                @Override
+                public PImage call() {
+                    return cache.getTile(TILE);
+                }
+            };
+            Future<PImage> first = threads.submit(request);
+            assertTrue(blocking.entered.await(5, TimeUnit.SECONDS));
+            Future<PImage> second = threads.submit(request);
+            // give the second request time to find the load under way and wait for it
+            Thread.sleep(200);
+            blocking.release.countDown();
+
+            PImage image = first.get(5, TimeUnit.SECONDS);
+            assertNotNull(image);
+            assertSame(image, second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, blocking.loads.get());
+            assertEquals(1, cache.getMisses());
+            assertEquals(1, cache.getMemoryHits());
+        } finally {
+            blocking.release.countDown();
+            threads.shutdown();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * The bundled tiles, loaded through MBTilesMapProvider; loads of {@link #TILE} count and wait to
+     * be released.
+     */
+    private static class BlockingProvider extends MBTilesMapProvider {
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+
+        BlockingProvider() {
+            super(MBTilesTileSourceTest.MBTILES);
+        }
+
+        @Override
+        public PImage getTile(Coordinate coordinate) {
+            if (coordinate.equals(TILE)) {
+                loads.incrementAndGet();
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.getTile(coordinate);
+        }
+    }
+
+    /**
+     * Serves the bundled tiles only as file URLs, like a network provider, so that the cache keeps
+     * them on disk.
+     */
+    private static class UrlTileProvider extends AbstractMapProvider {
+
+        private final File directory;
+
+        UrlTileProvider(File directory) {
+            super(new MBTilesMapProvider().projection);
+            this.directory = new File(directory, "source");
+        }
+
+        @Override
+        public PImage getTile(Coordinate coordinate) {
+            return null;
+        }
+
+        @Override
+        public String[] getTileUrls(Coordinate coordinate) {
+            try {
+                return new String[]{sourceFile(coordinate).toURI().toURL().toString()};
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public int tileWidth() {
+            return 256;
+        }
+
+        @Override
+        public int tileHeight() {
+            return 256;
+        }
+
+        // copies the tile out of the mbtiles file, whose rows count from the bottom
+        private File sourceFile(Coordinate coordinate) throws Exception {
+            int zoom = (int) coordinate.zoom;
+            File file = new File(directory, zoom + "-" + (int) coordinate.column + "-" + (int) coordinate.row + ".png");
+            if (file.isFile()) {
+                return file;
+            }
+            Class.forName("org.sqlite.JDBC");
+            Connection connection = DriverManager.getConnection("jdbc:sqlite:" + MBTilesTileSourceTest.MBTILES);
+            try {
+                PreparedStatement query = connection.prepareStatement(
+                        "SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?");
+                query.setInt(1, zoom);
+                query.setInt(2, (int) coordinate.column);
+                query.setInt(3, (1 << zoom) - (int) coordinate.row - 1);
+                ResultSet result = query.executeQuery();
+                assertTrue(result.next());
+                directory.mkdirs();
+                OutputStream out = new FileOutputStream(file);
+                try {
+                    out.write(result.getBytes(1));
+                } finally {
+                    out.close();
+                }
+            } finally {
+                connection.close();
+            }
+            return file;
+        }
+    }
+}
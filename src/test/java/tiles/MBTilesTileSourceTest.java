@@ -0,0 +1,86 @@
+package tiles;
+
+import de.fhpotsdam.unfolding.core.Coordinate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import processing.core.PImage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Reads the bundled blankLight-1-3.mbtiles through the pooled source from more threads than it has
+ * connections.
+ *
+ * @author abrar hayat
+ */
+
+public class MBTilesTileSourceTest {
+
+    static final String MBTILES = "data/blankLight-1-3.mbtiles";
+    private static final int READERS = 2;
+    private static final int THREADS = 8;
+
+    private PooledMBTilesMapProvider provider;
+
+    @Before
+    public void open() throws Exception {
+        provider = new PooledMBTilesMapProvider(MBTILES, READERS);
+    }
+
+    @After
+    public void close() {
+        provider.getSource().close();
+    }
+
+    @Test
+    public void loadsEveryTileFromConcurrentThreads() throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<PImage>> tiles = new ArrayList<Future<PImage>>();
+            for (int zoom = 1; zoom <= 3; zoom++) {
+                for (int row = 0; row < 1 << zoom; row++) {
+                    for (int column = 0; column < 1 << zoom; column++) {
+                        final Coordinate coordinate = new Coordinate(row, column, zoom);
+                        tiles.add(threads.submit(new Callable<PImage>() {
+                            @Override
+                            public PImage call() {
+                                return provider.getTile(coordinate);
+                            }
+                        }));
+                    }
+                }
+            }
+            assertEquals(4 + 16 + 64, tiles.size());
+            for (Future<PImage> tile : tiles) {
+                PImage image = tile.get();
+                assertNotNull(image);
+                assertEquals(256, image.width);
+                assertEquals(256, image.height);
+            }
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+    @Test
+    public void returnsNullForMissingTiles() {
+        assertNull(provider.getTile(new Coordinate(0, 0, 10)));
+    }
+
+    @Test
+    public void returnsNullAfterClose() {
+        assertNotNull(provider.getTile(new Coordinate(0, 0, 1)));
+        provider.getSource().close();
+        assertNull(provider.getTile(new Coordinate(0, 0, 1)));
+    }
+}